@@ -0,0 +1,65 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs.benchmark;
+
+import io.cubefs.CubefsConfigs;
+import io.cubefs.CubefsFileSystem;
+import io.cubefs.InMemoryCubefsLib;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Builds file systems backed by {@link InMemoryCubefsLib} for the benchmarks.
+ */
+final class BenchmarkFileSystems {
+    private BenchmarkFileSystems() {
+    }
+
+    static Configuration newConf(long latencyMicros) {
+        InMemoryCubefsLib.setLatencyMicros(latencyMicros);
+        Configuration conf = new Configuration();
+        conf.set("fs.cfs.impl", CubefsFileSystem.class.getName());
+        conf.setBoolean("fs.cfs.impl.disable.cache", true);
+        conf.set(CubefsConfigs.CFS_MASTER_ADDRESS_KEY, "127.0.0.1:17010");
+        conf.set(CubefsConfigs.CFS_ACCESS_KEY, "ak");
+        conf.set(CubefsConfigs.CFS_SECRET_KEY, "sk");
+        conf.set(CubefsConfigs.CFS_NATIVE_LIB_IMPL, InMemoryCubefsLib.class.getName());
+        return conf;
+    }
+
+    static FileSystem open(Configuration conf) throws IOException {
+        return FileSystem.get(URI.create("cfs://bench/"), conf);
+    }
+
+    static void writeFile(FileSystem fs, Path path, long size) throws IOException {
+        byte[] chunk = new byte[1 << 20];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        FSDataOutputStream out = fs.create(path, true);
+        try {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
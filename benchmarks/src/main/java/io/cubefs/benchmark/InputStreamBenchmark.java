@@ -0,0 +1,124 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs.benchmark;
+
+import io.cubefs.CubefsConfigs;
+import io.cubefs.InMemoryCubefsLib;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential and random reads through {@code CubefsInputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputStreamBenchmark {
+    private static final Path FILE = new Path("/bench/input");
+
+    @Param({"131072", "1048576"})
+    public int readBufferSize;
+
+    @Param({"4096", "65536"})
+    public int readSize;
+
+    @Param({"67108864"})
+    public long fileSize;
+
+    @Param({"0", "100"})
+    public long latencyMicros;
+
+    private FileSystem fs;
+    private FSDataInputStream in;
+    private byte[] buf;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InMemoryCubefsLib.reset();
+        Configuration conf = BenchmarkFileSystems.newConf(0);
+        conf.setInt(CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE, readBufferSize);
+        fs = BenchmarkFileSystems.open(conf);
+        BenchmarkFileSystems.writeFile(fs, FILE, fileSize);
+        InMemoryCubefsLib.setLatencyMicros(latencyMicros);
+        in = fs.open(FILE);
+        buf = new byte[readSize];
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        in.close();
+        fs.close();
+    }
+
+    /**
+     * Reads the whole file front to back, one op per file.
+     */
+    @Benchmark
+    public long sequentialRead() throws IOException {
+        FSDataInputStream stream = fs.open(FILE);
+        try {
+            long total = 0;
+            int n;
+            while ((n = stream.read(buf, 0, buf.length)) > 0) {
+                total += n;
+            }
+            return total;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Seeks to a random offset and reads {@code readSize} bytes.
+     */
+    @Benchmark
+    public int randomRead() throws IOException {
+        long offset = (long) (random.nextDouble() * (fileSize - readSize));
+        in.seek(offset);
+        int total = 0;
+        while (total < readSize) {
+            int n = in.read(buf, total, readSize - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs.benchmark;
+
+import io.cubefs.InMemoryCubefsLib;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code listStatus} over a large directory and {@code getFileStatus} of its entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+    private static final Path DIR = new Path("/bench/dir");
+
+    @Param({"1000", "10000"})
+    public int entries;
+
+    @Param({"0", "100"})
+    public long latencyMicros;
+
+    private FileSystem fs;
+    private Path[] files;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InMemoryCubefsLib.reset();
+        fs = BenchmarkFileSystems.open(BenchmarkFileSystems.newConf(0));
+        fs.mkdirs(DIR);
+        files = new Path[entries];
+        for (int i = 0; i < entries; i++) {
+            files[i] = new Path(DIR, "file_" + i);
+            fs.create(files[i]).close();
+        }
+        InMemoryCubefsLib.setLatencyMicros(latencyMicros);
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.close();
+    }
+
+    @Benchmark
+    public FileStatus[] listStatus() throws IOException {
+        return fs.listStatus(DIR);
+    }
+
+    @Benchmark
+    public FileStatus getFileStatus() throws IOException {
+        return fs.getFileStatus(files[random.nextInt(files.length)]);
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs.benchmark;
+
+import io.cubefs.CubefsConfigs;
+import io.cubefs.InMemoryCubefsLib;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a whole file through {@code CubefsOutputStream} in chunks of {@code writeSize} bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputStreamBenchmark {
+    private static final Path FILE = new Path("/bench/output");
+
+    @Param({"131072", "8388608"})
+    public int bufferSize;
+
+    @Param({"4096", "1048576"})
+    public int writeSize;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    @Param({"0", "100"})
+    public long latencyMicros;
+
+    @Param({"false", "true"})
+    public boolean asyncWrite;
+
+    private FileSystem fs;
+    private byte[] buf;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InMemoryCubefsLib.reset();
+        Configuration conf = BenchmarkFileSystems.newConf(latencyMicros);
+        conf.setInt(CubefsConfigs.CFS_MIN_BUFFER_SIZE, bufferSize);
+        conf.setBoolean(CubefsConfigs.CFS_WRITE_ASYNC_ENABLE, asyncWrite);
+        fs = BenchmarkFileSystems.open(conf);
+        buf = new byte[writeSize];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.close();
+    }
+
+    @Benchmark
+    public long writeFile() throws IOException {
+        FSDataOutputStream out = fs.create(FILE, true);
+        long written = 0;
+        try {
+            while (written < fileSize) {
+                int n = (int) Math.min(writeSize, fileSize - written);
+                out.write(buf, 0, n);
+                written += n;
+            }
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+}
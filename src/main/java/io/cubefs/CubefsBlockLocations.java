@@ -0,0 +1,165 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block locations built from the data partitions holding the extents of a file. Adjacent extents
+ * on the same data nodes are merged into blocks of up to the file block size, and the blocks are
+ * stretched over the holes between extents so that every offset of the file is covered. The
+ * layout of a file is fetched once and cached until the file changes or the entry expires.
+ */
+class CubefsBlockLocations {
+    private final CubefsClientPool clients;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Layout> layouts;
+
+    /**
+     * The blocks of one version of a file.
+     */
+    private static final class Layout {
+        final long length;
+        final long modificationTime;
+        final long expires;
+        final long[] offsets;
+        final long[] lengths;
+        final String[][] names;
+        final String[][] hosts;
+
+        Layout(FileStatus file, long expires, List<long[]> ranges, List<String> addresses) {
+            this.length = file.getLen();
+            this.modificationTime = file.getModificationTime();
+            this.expires = expires;
+            int n = ranges.size();
+            this.offsets = new long[n];
+            this.lengths = new long[n];
+            this.names = new String[n][];
+            this.hosts = new String[n][];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = ranges.get(i)[0];
+                lengths[i] = ranges.get(i)[1];
+                names[i] = addresses.get(i).isEmpty() ? new String[0] : addresses.get(i).split(",");
+                hosts[i] = new String[names[i].length];
+                for (int j = 0; j < names[i].length; j++) {
+                    int colon = names[i][j].lastIndexOf(':');
+                    hosts[i][j] = colon < 0 ? names[i][j] : names[i][j].substring(0, colon);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param ttlMillis  lifetime of a cached layout, 0 to fetch it on every call
+     * @param maxEntries number of files whose layout is cached
+     */
+    CubefsBlockLocations(CubefsClientPool clients, long ttlMillis, final int maxEntries) {
+        this.clients = clients;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.layouts = new LinkedHashMap<String, Layout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the blocks of {@code file} overlapping {@code [start, start + len)}, or null if
+     * libcfs cannot report extent locations or the file has no extents.
+     *
+     * @param path volume path of {@code file}
+     */
+    BlockLocation[] get(String path, FileStatus file, long start, long len) throws IOException {
+        Layout layout = layout(path, file);
+        if (layout == null) {
+            return null;
+        }
+        long end = start + len;
+        List<BlockLocation> result = new ArrayList<>();
+        for (int i = 0; i < layout.offsets.length; i++) {
+            long offset = layout.offsets[i];
+            if (offset < end && offset + layout.lengths[i] > start) {
+                result.add(new BlockLocation(layout.names[i], layout.hosts[i], offset, layout.lengths[i]));
+            }
+        }
+        return result.toArray(new BlockLocation[result.size()]);
+    }
+
+    void invalidate(String path) {
+        synchronized (layouts) {
+            layouts.remove(path);
+        }
+    }
+
+    private Layout layout(String path, FileStatus file) throws IOException {
+        long now = System.nanoTime();
+        synchronized (layouts) {
+            Layout cached = layouts.get(path);
+            if (cached != null && cached.expires - now > 0 && cached.length == file.getLen()
+                    && cached.modificationTime == file.getModificationTime()) {
+                return cached;
+            }
+        }
+        List<CubefsLib.ExtentLocation> extents = clients.next().getExtentLocations(path, 0, file.getLen());
+        if (extents == null || extents.isEmpty() || extents.get(0).fileOffset >= file.getLen()) {
+            return null;
+        }
+        Layout layout = merge(file, now + ttlNanos, extents);
+        if (ttlNanos > 0) {
+            synchronized (layouts) {
+                layouts.put(path, layout);
+            }
+        }
+        return layout;
+    }
+
+    private static Layout merge(FileStatus file, long expires, List<CubefsLib.ExtentLocation> extents) {
+        long blockSize = file.getBlockSize();
+        List<long[]> ranges = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        long[] current = null;
+        String currentHosts = null;
+        for (CubefsLib.ExtentLocation e : extents) {
+            if (e.fileOffset >= file.getLen()) {
+                break;
+            }
+            String h = e.getHosts();
+            if (current != null && h.equals(currentHosts) && e.fileOffset + e.size - current[0] <= blockSize) {
+                current[1] = e.fileOffset + e.size - current[0];
+                continue;
+            }
+            if (current != null) {
+                // cover the hole up to this extent
+                current[1] = e.fileOffset - current[0];
+            }
+            long from = ranges.isEmpty() ? 0 : e.fileOffset;
+            current = new long[]{from, e.fileOffset + e.size - from};
+            currentHosts = h;
+            ranges.add(current);
+            addresses.add(h);
+        }
+        current[1] = file.getLen() - current[0];
+        return new Layout(file, expires, ranges, addresses);
+    }
+}
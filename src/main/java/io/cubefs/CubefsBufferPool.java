@@ -0,0 +1,58 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.util.DirectBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool of direct buffers used by the streams, counting the buffers taken and those not
+ * returned yet.
+ */
+class CubefsBufferPool extends DirectBufferPool {
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong buffersInUse = new AtomicLong();
+    private final AtomicLong bytesInUse = new AtomicLong();
+
+    @Override
+    public ByteBuffer getBuffer(int size) {
+        ByteBuffer buf = super.getBuffer(size);
+        gets.incrementAndGet();
+        buffersInUse.incrementAndGet();
+        bytesInUse.addAndGet(buf.capacity());
+        return buf;
+    }
+
+    @Override
+    public void returnBuffer(ByteBuffer buf) {
+        buffersInUse.decrementAndGet();
+        bytesInUse.addAndGet(-buf.capacity());
+        super.returnBuffer(buf);
+    }
+
+    long getGets() {
+        return gets.get();
+    }
+
+    long getBuffersInUse() {
+        return buffersInUse.get();
+    }
+
+    long getBytesInUse() {
+        return bytesInUse.get();
+    }
+}
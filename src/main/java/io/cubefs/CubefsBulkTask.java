@@ -0,0 +1,73 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Applies one metadata operation to each path of a list, splitting it in halves until slices are
+ * small enough to run in one task, so the pool runs as many operations at once as it has threads.
+ * Every path is attempted; the ones that failed are recorded with their error.
+ */
+class CubefsBulkTask extends RecursiveAction {
+    // paths handled sequentially by one task
+    static final int SLICE = 16;
+
+    /**
+     * The operation on the path at some index.
+     */
+    interface Op {
+        void apply(int i) throws IOException;
+    }
+
+    private final Op op;
+    private final Path[] paths;
+    private final int from;
+    private final int to;
+    private final Map<Path, IOException> failures;
+
+    /**
+     * @param paths    paths as reported in {@code failures}, {@code op} is applied to their indexes
+     * @param failures concurrent map receiving the paths whose operation failed
+     */
+    CubefsBulkTask(Op op, Path[] paths, int from, int to, Map<Path, IOException> failures) {
+        this.op = op;
+        this.paths = paths;
+        this.from = from;
+        this.to = to;
+        this.failures = failures;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > SLICE) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new CubefsBulkTask(op, paths, from, mid, failures),
+                    new CubefsBulkTask(op, paths, mid, to, failures));
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            try {
+                op.apply(i);
+            } catch (IOException e) {
+                failures.put(paths[i], e);
+            }
+        }
+    }
+}
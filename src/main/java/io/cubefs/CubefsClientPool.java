@@ -0,0 +1,265 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Native clients of one volume, all set up with the same options, that a file system spreads its
+ * calls over so that concurrent threads do not contend on the locks and connections of a single
+ * client. An fd belongs to the client that opened it, so streams and listings stay on the client
+ * returned when they were opened, while single metadata calls take whichever client comes next.
+ * <p>
+ * Loading libcfs and starting the clients can run when the pool is created, in the background, or
+ * on the first call; callers wait in {@link #next()} for whatever remains of the startup.
+ */
+class CubefsClientPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    static final String POLICY_ROUND_ROBIN = "round-robin";
+    static final String POLICY_LEAST_LOADED = "least-loaded";
+
+    static final String START_SYNC = "sync";
+    static final String START_BACKGROUND = "background";
+    static final String START_LAZY = "lazy";
+
+    private final Configuration conf;
+    private final Map<String, String> options;
+    private final int size;
+    private final boolean leastLoaded;
+    private final String volumeName;
+    private final AtomicInteger next = new AtomicInteger();
+    private final FutureTask<Void> startup;
+    // set once every client has started
+    private volatile CubefsMount[] mounts;
+    // guarded by this
+    private CubefsMount[] created;
+    private boolean closed;
+    private final Map<String, Long> startupMicros = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private final CubefsMetrics metrics;
+
+    /**
+     * Prepares {@code size} clients with {@code options}, started by {@link #start(String)}.
+     *
+     * @param conf   selects the libcfs binding, see {@link CubefsMount#loadLibrary(Configuration)}
+     * @param policy {@link #POLICY_ROUND_ROBIN} or {@link #POLICY_LEAST_LOADED}, the client with
+     *               the fewest open files
+     */
+    CubefsClientPool(Configuration conf, Map<String, String> options, int size, String policy) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid client pool size " + size);
+        }
+        if (POLICY_LEAST_LOADED.equals(policy)) {
+            this.leastLoaded = true;
+        } else if (POLICY_ROUND_ROBIN.equals(policy)) {
+            this.leastLoaded = false;
+        } else {
+            throw new IllegalArgumentException("Unknown client pool policy " + policy);
+        }
+        this.conf = conf;
+        this.options = new LinkedHashMap<>(options);
+        this.size = size;
+        this.volumeName = options.get("volName");
+        this.metrics = new CubefsMetrics(volumeName,
+                conf.getLong(CubefsConfigs.CFS_METRICS_INTERVAL_SECS, CubefsConfigs.CFS_METRICS_INTERVAL_SECS_DEFAULT));
+        this.startup = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                startClients();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Starts the clients now ({@link #START_SYNC}), in a daemon thread ({@link #START_BACKGROUND}),
+     * or on the first call to {@link #next()} ({@link #START_LAZY}).
+     */
+    void start(String mode) throws IOException {
+        if (START_SYNC.equals(mode)) {
+            awaitStart();
+        } else if (START_BACKGROUND.equals(mode)) {
+            Thread t = new Thread(startup, "cfs-start-" + volumeName);
+            t.setDaemon(true);
+            t.start();
+        } else if (!START_LAZY.equals(mode)) {
+            throw new IllegalArgumentException("Unknown client start mode " + mode);
+        }
+    }
+
+    /**
+     * Runs the startup in the calling thread unless it already runs elsewhere, and waits for it.
+     */
+    private void awaitStart() throws IOException {
+        startup.run();
+        try {
+            startup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while starting clients of " + volumeName);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to start clients of " + volumeName, cause);
+        }
+    }
+
+    private synchronized void startClients() throws IOException {
+        if (closed) {
+            throw new IOException("Clients of " + volumeName + " are closed");
+        }
+        long t0 = System.nanoTime();
+        CubefsLib libcfs = CubefsMount.loadLibrary(conf);
+        long t1 = System.nanoTime();
+        long t2;
+        boolean started = false;
+        created = new CubefsMount[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                created[i] = new CubefsMount(libcfs, metrics);
+                for (Map.Entry<String, String> option : options.entrySet()) {
+                    created[i].setClient(option.getKey(), option.getValue());
+                }
+            }
+            t2 = System.nanoTime();
+            for (CubefsMount mount : created) {
+                int ret = mount.startClient();
+                if (ret < 0) {
+                    throw new IOException(String.format("Chubaofs initialize fail for cfs://%s,code=%s", volumeName, ret));
+                }
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                closeClients();
+            }
+        }
+        long t3 = System.nanoTime();
+        startupMicros.put("load", TimeUnit.NANOSECONDS.toMicros(t1 - t0));
+        startupMicros.put("create", TimeUnit.NANOSECONDS.toMicros(t2 - t1));
+        startupMicros.put("start", TimeUnit.NANOSECONDS.toMicros(t3 - t2));
+        mounts = created;
+        LOG.debug("Started " + size + " clients for volume " + volumeName + ": " + startupMicros + " us");
+    }
+
+    /**
+     * Returns the client for the next call, waiting for the clients to start if needed.
+     */
+    CubefsMount next() throws IOException {
+        CubefsMount[] m = mounts;
+        if (m == null) {
+            long t = System.nanoTime();
+            awaitStart();
+            long waited = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t);
+            synchronized (startupMicros) {
+                Long total = startupMicros.get("wait");
+                startupMicros.put("wait", total == null ? waited : total + waited);
+            }
+            m = mounts;
+        }
+        if (m.length == 1) {
+            return m[0];
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % m.length;
+        if (!leastLoaded) {
+            return m[start];
+        }
+        CubefsMount best = m[start];
+        int load = best.getOpenFiles();
+        for (int i = 1; i < m.length && load > 0; i++) {
+            CubefsMount c = m[(start + i) % m.length];
+            int l = c.getOpenFiles();
+            if (l < load) {
+                best = c;
+                load = l;
+            }
+        }
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Microseconds spent in each startup phase: {@code load} of libcfs, {@code create} and
+     * configuration of the clients, {@code start} of the clients, and {@code wait}, the time calls
+     * waited for the startup. Empty until the clients have started.
+     */
+    Map<String, Long> getStartupMicros() {
+        synchronized (startupMicros) {
+            return new LinkedHashMap<>(startupMicros);
+        }
+    }
+
+    /**
+     * Number of native calls made to the meta nodes by all clients.
+     */
+    long getMetadataOps() {
+        CubefsMount[] m = mounts;
+        long ops = 0;
+        if (m != null) {
+            for (CubefsMount mount : m) {
+                ops += mount.getMetadataOps();
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Calls, latencies and bytes of all clients.
+     */
+    CubefsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Unregisters the metrics source and closes the clients, after waiting for a startup in
+     * progress. A pool that has not started yet never will.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        metrics.unregister();
+        closeClients();
+    }
+
+    private void closeClients() throws IOException {
+        if (created != null) {
+            for (CubefsMount mount : created) {
+                if (mount != null) {
+                    mount.closeClient();
+                }
+            }
+            created = null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client pools shared by the file systems of a process that use the same volume, master,
+ * credentials and client options, so that creating another file system does not start new native
+ * clients. A pool is reference counted and closed when the last file system using it releases it.
+ * Pools are registered under a digest of their settings, which include the secret key.
+ */
+final class CubefsClientRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    private static final Map<String, Shared> pools = new HashMap<>();
+
+    private static final class Shared {
+        final CubefsClientPool pool;
+        int refs;
+
+        Shared(CubefsClientPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    private CubefsClientRegistry() {
+    }
+
+    /**
+     * Returns the key under which clients created with these settings are shared, a SHA-256 digest
+     * so that the credentials do not end up in heap dumps or logs.
+     */
+    static String key(Configuration conf, Map<String, String> options, int size, String policy) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            sb.append(option.getKey()).append('=').append(option.getValue()).append('\n');
+        }
+        sb.append("lib=").append(conf.get(CubefsConfigs.CFS_NATIVE_LIB_IMPL,
+                conf.get(CubefsConfigs.CFS_NATIVE_BINDING, CubefsConfigs.CFS_NATIVE_BINDING_DEFAULT))).append('\n');
+        sb.append("size=").append(size).append('\n');
+        sb.append("policy=").append(policy);
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the pool registered under {@code key}, creating it on first use and starting it as
+     * {@code startMode} says, see {@link CubefsClientPool#start(String)}. The pool is started outside
+     * the registry lock: file systems of other keys do not wait for it, those of the same key wait
+     * for the same startup. Each successful call must be paired with a {@link #release}.
+     */
+    static CubefsClientPool acquire(String key, Configuration conf, Map<String, String> options,
+                                    int size, String policy, String startMode) throws IOException {
+        Shared shared;
+        synchronized (CubefsClientRegistry.class) {
+            shared = pools.get(key);
+            if (shared == null) {
+                shared = new Shared(new CubefsClientPool(conf, options, size, policy));
+                pools.put(key, shared);
+                LOG.debug("Sharing clients of volume " + options.get("volName"));
+            }
+            shared.refs++;
+        }
+        try {
+            shared.pool.start(startMode);
+        } catch (IOException | RuntimeException e) {
+            // a pool that failed to start is dropped with its last reference, the next acquire retries
+            try {
+                release(key);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return shared.pool;
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire}, closing the pool when it was the last one.
+     */
+    static void release(String key) throws IOException {
+        CubefsClientPool closing = null;
+        synchronized (CubefsClientRegistry.class) {
+            Shared shared = pools.get(key);
+            if (shared != null && --shared.refs == 0) {
+                pools.remove(key);
+                closing = shared.pool;
+            }
+        }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * Number of file systems using the pool registered under {@code key}, 0 if there is none.
+     */
+    static synchronized int references(String key) {
+        Shared shared = pools.get(key);
+        return shared == null ? 0 : shared.refs;
+    }
+}
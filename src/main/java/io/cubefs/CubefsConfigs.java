@@ -47,4 +47,121 @@ public class CubefsConfigs extends CommonConfigurationKeys {
 
     public static final String CFS_MIN_READ_BUFFER_SIZE = "cfs.min.read.buffersize";
     public static final int CFS_MIN_READ_BUFFER_SIZE_DEFAULT = 128 << 10;
+
+    public static final String CFS_IO_THREADS = "cfs.io.threads";
+    public static final int CFS_IO_THREADS_DEFAULT = 16;
+
+    public static final String CFS_READAHEAD_ENABLE = "cfs.readahead.enable";
+    public static final boolean CFS_READAHEAD_ENABLE_DEFAULT = false;
+
+    public static final String CFS_READAHEAD_DEPTH = "cfs.readahead.depth";
+    public static final int CFS_READAHEAD_DEPTH_DEFAULT = 4;
+
+    public static final String CFS_READAHEAD_WINDOW_SIZE = "cfs.readahead.window.size";
+    public static final int CFS_READAHEAD_WINDOW_SIZE_DEFAULT = 4 << 20;
+
+    public static final String CFS_INPUT_FADVISE = "cfs.input.fadvise";
+    public static final String CFS_INPUT_FADVISE_DEFAULT = "normal";
+
+    public static final String CFS_INPUT_RANDOM_READ_SIZE = "cfs.input.random.read.size";
+    public static final int CFS_INPUT_RANDOM_READ_SIZE_DEFAULT = 64 << 10;
+
+    public static final String CFS_VECTORED_READ_MIN_SEEK_SIZE = "cfs.vectored.read.min.seek.size";
+    public static final int CFS_VECTORED_READ_MIN_SEEK_SIZE_DEFAULT = 4 << 10;
+
+    public static final String CFS_VECTORED_READ_MAX_MERGED_SIZE = "cfs.vectored.read.max.merged.size";
+    public static final int CFS_VECTORED_READ_MAX_MERGED_SIZE_DEFAULT = 1 << 20;
+
+    public static final String CFS_WRITE_ASYNC_ENABLE = "cfs.write.async.enable";
+    public static final boolean CFS_WRITE_ASYNC_ENABLE_DEFAULT = false;
+
+    public static final String CFS_WRITE_ASYNC_BUFFERS = "cfs.write.async.buffers";
+    public static final int CFS_WRITE_ASYNC_BUFFERS_DEFAULT = 2;
+
+    public static final String CFS_WRITE_PARALLEL_ENABLE = "cfs.write.parallel.enable";
+    public static final boolean CFS_WRITE_PARALLEL_ENABLE_DEFAULT = false;
+
+    public static final String CFS_WRITE_PARALLEL_THRESHOLD = "cfs.write.parallel.threshold";
+    public static final long CFS_WRITE_PARALLEL_THRESHOLD_DEFAULT = 128L << 20;
+
+    public static final String CFS_WRITE_PARALLEL_PARTS = "cfs.write.parallel.parts";
+    public static final int CFS_WRITE_PARALLEL_PARTS_DEFAULT = 4;
+
+    public static final String CFS_NATIVE_BINDING = "cfs.native.binding";
+    public static final String CFS_NATIVE_BINDING_DEFAULT = CubefsMount.BINDING_PROXY;
+
+    // class implementing CubefsLib used instead of libcfs.so, e.g. an in-process fake for tests and benchmarks
+    public static final String CFS_NATIVE_LIB_IMPL = "cfs.native.lib.impl";
+
+    // cache FileStatus of recently looked up paths, invalidated by this client's own mutations
+    public static final String CFS_METADATA_CACHE_ENABLE = "cfs.metadata.cache.enable";
+    public static final boolean CFS_METADATA_CACHE_ENABLE_DEFAULT = false;
+
+    public static final String CFS_METADATA_CACHE_TTL_MS = "cfs.metadata.cache.ttl.ms";
+    public static final long CFS_METADATA_CACHE_TTL_MS_DEFAULT = 1000L;
+
+    public static final String CFS_METADATA_CACHE_MAX_ENTRIES = "cfs.metadata.cache.max.entries";
+    public static final int CFS_METADATA_CACHE_MAX_ENTRIES_DEFAULT = 10000;
+
+    // remember paths found missing, cleared when this client creates them or their parents
+    public static final String CFS_METADATA_CACHE_NEGATIVE_ENABLE = "cfs.metadata.cache.negative.enable";
+    public static final boolean CFS_METADATA_CACHE_NEGATIVE_ENABLE_DEFAULT = false;
+
+    public static final String CFS_METADATA_CACHE_NEGATIVE_TTL_MS = "cfs.metadata.cache.negative.ttl.ms";
+    public static final long CFS_METADATA_CACHE_NEGATIVE_TTL_MS_DEFAULT = 500L;
+
+    // read the next readdir page in the background while the caller consumes a listing
+    public static final String CFS_LIST_PREFETCH_ENABLE = "cfs.list.prefetch.enable";
+    public static final boolean CFS_LIST_PREFETCH_ENABLE_DEFAULT = false;
+
+    // entries read per readdir + batch stat round trip while listing
+    public static final String CFS_READDIR_BATCH_SIZE = "cfs.readdir.batch.size";
+    public static final int CFS_READDIR_BATCH_SIZE_DEFAULT = 100;
+
+    // directories processed concurrently by a recursive listFiles, getContentSummary or delete, and files by bulkDelete
+    public static final String CFS_TREE_WALK_THREADS = "cfs.tree.walk.threads";
+    public static final int CFS_TREE_WALK_THREADS_DEFAULT = 8;
+
+    // let libcfs remove a whole tree with cfs_rmdir(path, recursive) instead of walking it in the client
+    public static final String CFS_DELETE_NATIVE_RECURSIVE = "cfs.delete.native.recursive";
+    public static final boolean CFS_DELETE_NATIVE_RECURSIVE_DEFAULT = false;
+
+    // report the data nodes holding the extents of a file as its block locations instead of synthetic
+    // hosts; needs a libcfs exporting cfs_get_extent_locations, which released libraries do not yet
+    public static final String CFS_BLOCK_LOCATIONS_NATIVE_ENABLE = "cfs.block.locations.native.enable";
+    public static final boolean CFS_BLOCK_LOCATIONS_NATIVE_ENABLE_DEFAULT = false;
+
+    public static final String CFS_BLOCK_LOCATIONS_CACHE_TTL_MS = "cfs.block.locations.cache.ttl.ms";
+    public static final long CFS_BLOCK_LOCATIONS_CACHE_TTL_MS_DEFAULT = 60000L;
+
+    public static final String CFS_BLOCK_LOCATIONS_CACHE_MAX_ENTRIES = "cfs.block.locations.cache.max.entries";
+    public static final int CFS_BLOCK_LOCATIONS_CACHE_MAX_ENTRIES_DEFAULT = 1000;
+
+    // native clients per file system, streams and calls are spread over them
+    public static final String CFS_CLIENT_POOL_SIZE = "cfs.client.pool.size";
+    public static final int CFS_CLIENT_POOL_SIZE_DEFAULT = 1;
+
+    // how a client is picked for a stream or call: round-robin or least-loaded (fewest open files)
+    public static final String CFS_CLIENT_POOL_POLICY = "cfs.client.pool.policy";
+    public static final String CFS_CLIENT_POOL_POLICY_DEFAULT = "round-robin";
+
+    // share started native clients between the file systems of a process with the same volume, master,
+    // credentials and client options, closing them with the last one
+    public static final String CFS_CLIENT_SHARE_ENABLE = "cfs.client.share.enable";
+    public static final boolean CFS_CLIENT_SHARE_ENABLE_DEFAULT = false;
+
+    // when libcfs is loaded and the native clients are started: sync (during initialize), background
+    // (in a thread started by initialize) or lazy (on the first operation), which waits for what remains
+    public static final String CFS_CLIENT_START_MODE = "cfs.client.start.mode";
+    public static final String CFS_CLIENT_START_MODE_DEFAULT = "sync";
+
+    // publish the calls, errors and latency percentiles of the native clients, the bytes read and written
+    // and the stream buffer use as a metrics2 source, one per set of native clients; when off, calls are
+    // not recorded
+    public static final String CFS_METRICS_ENABLE = "cfs.metrics.enable";
+    public static final boolean CFS_METRICS_ENABLE_DEFAULT = false;
+
+    // interval in seconds covered by the published latency percentiles, which roll over on time
+    public static final String CFS_METRICS_INTERVAL_SECS = "cfs.metrics.interval.secs";
+    public static final long CFS_METRICS_INTERVAL_SECS_DEFAULT = 60;
 }
@@ -0,0 +1,47 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a recursive {@link CubefsFileSystem#delete(org.apache.hadoop.fs.Path, boolean, CubefsDeleteProgress)}
+ * has removed so far. The counters may be read from any thread while the delete runs.
+ */
+public class CubefsDeleteProgress {
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong directoriesDeleted = new AtomicLong();
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    public long getDirectoriesDeleted() {
+        return directoriesDeleted.get();
+    }
+
+    void fileDeleted() {
+        filesDeleted.incrementAndGet();
+    }
+
+    void directoryDeleted() {
+        directoriesDeleted.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "files=" + filesDeleted.get() + " directories=" + directoriesDeleted.get();
+    }
+}
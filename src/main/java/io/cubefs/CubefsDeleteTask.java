@@ -0,0 +1,161 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Deletes a directory tree bottom-up on a fork-join pool. Every readdir page of a directory forks
+ * one task unlinking its files and one task per subdirectory, and the directory itself is removed
+ * once they have completed. The first hard error stops the remaining work and is reported by
+ * {@link #check()}; entries that are already gone are not errors. A directory is only removed once
+ * empty, so entries created while the delete runs fail it with
+ * {@link org.apache.hadoop.fs.PathIsNotEmptyDirectoryException} instead of being removed unseen.
+ */
+class CubefsDeleteTask extends RecursiveAction {
+    private final Delete delete;
+    private final String dir;
+
+    CubefsDeleteTask(CubefsClientPool clients, String dir, int pageSize, CubefsDeleteProgress progress) {
+        this(new Delete(clients, pageSize, progress), dir);
+    }
+
+    private CubefsDeleteTask(Delete delete, String dir) {
+        this.delete = delete;
+        this.dir = dir;
+    }
+
+    private static final class Delete {
+        final CubefsClientPool clients;
+        final int pageSize;
+        final CubefsDeleteProgress progress;
+        volatile IOException error;
+
+        Delete(CubefsClientPool clients, int pageSize, CubefsDeleteProgress progress) {
+            this.clients = clients;
+            this.pageSize = pageSize;
+            this.progress = progress;
+        }
+
+        synchronized void fail(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private static final class UnlinkTask extends RecursiveAction {
+        private final Delete delete;
+        private final String[] paths;
+
+        UnlinkTask(Delete delete, String[] paths) {
+            this.delete = delete;
+            this.paths = paths;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                CubefsMount cfs = delete.clients.next();
+                for (String path : paths) {
+                    if (delete.error != null) {
+                        return;
+                    }
+                    int r = cfs.unlink(path);
+                    if (r == 0) {
+                        delete.progress.fileDeleted();
+                    } else if (r != CubefsMount.ENOENT) {
+                        delete.fail(CubefsMount.error(r, path));
+                    }
+                }
+            } catch (IOException e) {
+                delete.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Throws the first error hit by the delete, if any.
+     */
+    void check() throws IOException {
+        IOException e = delete.error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (delete.error != null) {
+            return;
+        }
+        List<ForkJoinTask<?>> children = new ArrayList<>();
+        try {
+            list(children);
+        } catch (IOException e) {
+            delete.fail(e);
+        }
+        for (ForkJoinTask<?> child : children) {
+            child.join();
+        }
+        if (delete.error != null) {
+            return;
+        }
+        try {
+            delete.clients.next().rmdir(dir, false);
+            delete.progress.directoryDeleted();
+        } catch (FileNotFoundException e) {
+            // removed concurrently
+        } catch (IOException e) {
+            delete.fail(e);
+        }
+    }
+
+    private void list(List<ForkJoinTask<?>> children) throws IOException {
+        CubefsMount cfs = delete.clients.next();
+        int fd = cfs.open(dir, CubefsMount.O_RDONLY, 0);
+        if (fd == CubefsMount.ENOENT) {
+            return;
+        }
+        if (fd < 0) {
+            throw CubefsMount.error(fd, dir);
+        }
+        try {
+            CubefsDirPage page = CubefsDirPage.forThread(delete.pageSize);
+            String prefix = dir.endsWith("/") ? dir : dir + "/";
+            while (delete.error == null && cfs.readdirPlus(fd, page, dir) > 0) {
+                List<String> files = new ArrayList<>(page.size());
+                for (int i = 0; i < page.size(); i++) {
+                    String path = prefix + page.name(i);
+                    if (page.isDirectory(i)) {
+                        children.add(new CubefsDeleteTask(delete, path).fork());
+                    } else {
+                        files.add(path);
+                    }
+                }
+                if (!files.isEmpty()) {
+                    children.add(new UnlinkTask(delete, files.toArray(new String[files.size()])).fork());
+                }
+            }
+        } finally {
+            cfs.close(fd);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One page of directory entries with their attributes, filled by {@link CubefsMount#readdirPlus}.
+ * The columns are decoded straight from the native cfs_dirent and cfs_stat_info arrays and are
+ * reused from page to page. Entry {@code i} is valid for {@code i < size()} until the next fill.
+ */
+public class CubefsDirPage {
+    // layout of cfs_dirent, see CubefsLib.Dirent
+    static final int DIRENT_SIZE = 272;
+    static final int DIRENT_INO = 0;
+    static final int DIRENT_NAME = 8;
+    static final int DIRENT_NAME_LEN = 268;
+    static final int DIRENT_NAME_MAX = 256;
+
+    // layout of cfs_stat_info, see CubefsLib.StatInfo
+    static final int STAT_SIZE = 80;
+    static final int STAT_INO = 0;
+    static final int STAT_SIZE_OFF = 8;
+    static final int STAT_ATIME = 24;
+    static final int STAT_MTIME = 32;
+    static final int STAT_ATIME_NSEC = 48;
+    static final int STAT_MTIME_NSEC = 52;
+    static final int STAT_MODE = 60;
+
+    // pages are only used between fork and join, so tasks run by one worker can share them
+    private static final ThreadLocal<CubefsDirPage> threadPages = new ThreadLocal<>();
+
+    private final int capacity;
+    // readdir results, in directory order
+    final long[] inos;
+    private final String[] dirNames;
+    private final LongIntMap index;
+    private final byte[] nameBuf = new byte[DIRENT_NAME_MAX];
+
+    // batch stat results, in the order returned
+    private final String[] names;
+    private final long[] sizes;
+    private final int[] modes;
+    private final long[] mtimes;
+    private final long[] atimes;
+    private int size;
+
+    public CubefsDirPage(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid page capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.inos = new long[capacity];
+        this.dirNames = new String[capacity];
+        this.index = new LongIntMap(capacity);
+        this.names = new String[capacity];
+        this.sizes = new long[capacity];
+        this.modes = new int[capacity];
+        this.mtimes = new long[capacity];
+        this.atimes = new long[capacity];
+    }
+
+    /**
+     * Returns a page owned by the calling thread. The caller must be done with it before the thread
+     * may run other tasks, e.g. before joining fork-join tasks.
+     */
+    static CubefsDirPage forThread(int capacity) {
+        CubefsDirPage page = threadPages.get();
+        if (page == null || page.capacity != capacity) {
+            page = new CubefsDirPage(capacity);
+            threadPages.set(page);
+        }
+        return page;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of entries with attributes, which may be less than what readdir returned if entries
+     * were removed in between.
+     */
+    public int size() {
+        return size;
+    }
+
+    public String name(int i) {
+        return names[i];
+    }
+
+    public long length(int i) {
+        return sizes[i];
+    }
+
+    public int mode(int i) {
+        return modes[i];
+    }
+
+    public boolean isDirectory(int i) {
+        return (modes[i] & CubefsMount.S_IFDIR) == CubefsMount.S_IFDIR;
+    }
+
+    /**
+     * Modification time in milliseconds.
+     */
+    public long modificationTime(int i) {
+        return mtimes[i];
+    }
+
+    /**
+     * Access time in milliseconds.
+     */
+    public long accessTime(int i) {
+        return atimes[i];
+    }
+
+    /**
+     * Decodes {@code count} cfs_dirent records from {@code buf}, which must be in native order.
+     */
+    void decodeDirents(ByteBuffer buf, int count) {
+        index.clear();
+        size = 0;
+        ByteBuffer view = buf.duplicate();
+        for (int i = 0; i < count; i++) {
+            int base = i * DIRENT_SIZE;
+            long ino = buf.getLong(base + DIRENT_INO);
+            int len = Math.min(Math.max(buf.getInt(base + DIRENT_NAME_LEN), 0), DIRENT_NAME_MAX);
+            ((Buffer) view).position(base + DIRENT_NAME);
+            view.get(nameBuf, 0, len);
+            inos[i] = ino;
+            dirNames[i] = new String(nameBuf, 0, len, StandardCharsets.UTF_8);
+            index.putIfAbsent(ino, i);
+        }
+    }
+
+    /**
+     * Decodes {@code count} cfs_stat_info records from {@code buf} and joins them with the names
+     * from the last {@link #decodeDirents}.
+     */
+    void decodeStats(ByteBuffer buf, int count) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int base = i * STAT_SIZE;
+            int at = index.get(buf.getLong(base + STAT_INO));
+            if (at < 0) {
+                continue;
+            }
+            names[n] = dirNames[at];
+            sizes[n] = buf.getLong(base + STAT_SIZE_OFF);
+            modes[n] = buf.getInt(base + STAT_MODE);
+            mtimes[n] = buf.getLong(base + STAT_MTIME) * 1000 + buf.getInt(base + STAT_MTIME_NSEC) / 1000000;
+            atimes[n] = buf.getLong(base + STAT_ATIME) * 1000 + buf.getInt(base + STAT_ATIME_NSEC) / 1000000;
+            n++;
+        }
+        size = n;
+    }
+
+    /**
+     * Open-addressing map from inode to readdir position, sized for one page.
+     */
+    static final class LongIntMap {
+        private final long[] keys;
+        // position + 1, 0 marks a free slot
+        private final int[] values;
+        private final int mask;
+
+        LongIntMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(expected, 2) * 2 - 1) << 1;
+            keys = new long[cap];
+            values = new int[cap];
+            mask = cap - 1;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        void putIfAbsent(long key, int value) {
+            int i = slot(key);
+            while (values[i] != 0) {
+                if (keys[i] == key) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value + 1;
+        }
+
+        /**
+         * Returns the value of {@code key}, or -1.
+         */
+        int get(long key) {
+            int i = slot(key);
+            while (values[i] != 0) {
+                if (keys[i] == key) {
+                    return values[i] - 1;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        void clear() {
+            Arrays.fill(values, 0);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * {@link CubefsLib} that calls the hot data and lookup functions of libcfs through JNA direct
+ * mapping, which binds static native methods once and skips the reflective proxy on every call.
+ * Everything else is delegated to the interface proxy.
+ */
+class CubefsDirectLib implements CubefsLib {
+    private final CubefsLib proxy;
+
+    /**
+     * @throws LinkageError if libcfs cannot be bound directly
+     */
+    CubefsDirectLib(CubefsLib proxy) {
+        Direct.init();
+        this.proxy = proxy;
+    }
+
+    private static final class Direct {
+        static {
+            Native.register(Direct.class, CubefsMount.LIBRARY_NAME);
+        }
+
+        static void init() {
+        }
+
+        static native int cfs_getattr(long id, String path, StatInfo stat);
+
+        static native int cfs_open(long id, String path, int flags, int mode, int uid, int gid);
+
+        static native int cfs_flush(long id, int fd);
+
+        static native void cfs_close(long id, int fd);
+
+        static native long cfs_write(long id, int fd, Pointer buf, long size, long offset);
+
+        static native long cfs_read(long id, int fd, Pointer buf, long size, long offset);
+
+        static native int cfs_mkdirs(long cid, String path, int mode);
+
+        static native int cfs_unlink(long cid, String path);
+
+        static native int cfs_rename(long cid, String from, String to, boolean overwritten);
+    }
+
+    @Override
+    public long cfs_new_client() {
+        return proxy.cfs_new_client();
+    }
+
+    @Override
+    public int cfs_set_client(long id, String key, String val) {
+        return proxy.cfs_set_client(id, key, val);
+    }
+
+    @Override
+    public int cfs_start_client(long id) {
+        return proxy.cfs_start_client(id);
+    }
+
+    @Override
+    public void cfs_close_client(long id) {
+        proxy.cfs_close_client(id);
+    }
+
+    @Override
+    public int cfs_chdir(long id, String path) {
+        return proxy.cfs_chdir(id, path);
+    }
+
+    @Override
+    public String cfs_getcwd(long id) {
+        return proxy.cfs_getcwd(id);
+    }
+
+    @Override
+    public int cfs_getattr(long id, String path, StatInfo stat) {
+        return Direct.cfs_getattr(id, path, stat);
+    }
+
+    @Override
+    public int cfs_setattr(long id, String path, StatInfo stat, int mask) {
+        return proxy.cfs_setattr(id, path, stat, mask);
+    }
+
+    @Override
+    public int cfs_open(long id, String path, int flags, int mode, int uid, int gid) {
+        return Direct.cfs_open(id, path, flags, mode, uid, gid);
+    }
+
+    @Override
+    public int cfs_flush(long id, int fd) {
+        return Direct.cfs_flush(id, fd);
+    }
+
+    @Override
+    public void cfs_close(long id, int fd) {
+        Direct.cfs_close(id, fd);
+    }
+
+    @Override
+    public long cfs_write(long id, int fd, Pointer buf, long size, long offset) {
+        return Direct.cfs_write(id, fd, buf, size, offset);
+    }
+
+    @Override
+    public long cfs_write(long id, int fd, byte[] buf, long size, long offset) {
+        return proxy.cfs_write(id, fd, buf, size, offset);
+    }
+
+    @Override
+    public long cfs_read(long id, int fd, Pointer buf, long size, long offset) {
+        return Direct.cfs_read(id, fd, buf, size, offset);
+    }
+
+    @Override
+    public int cfs_mkdirs(long cid, String path, int mode) {
+        return Direct.cfs_mkdirs(cid, path, mode);
+    }
+
+    @Override
+    public int cfs_unlink(long cid, String path) {
+        return Direct.cfs_unlink(cid, path);
+    }
+
+    @Override
+    public int cfs_rename(long cid, String from, String to, boolean overwritten) {
+        return Direct.cfs_rename(cid, from, to, overwritten);
+    }
+
+    @Override
+    public int cfs_readdir(long id, int fd, DirentArray.ByValue dents, long count) {
+        return proxy.cfs_readdir(id, fd, dents, count);
+    }
+
+    @Override
+    public int cfs_fchmod(long id, int fd, int mode) {
+        return proxy.cfs_fchmod(id, fd, mode);
+    }
+
+    @Override
+    public int cfs_rmdir(long cid, String path, boolean recursive) {
+        return proxy.cfs_rmdir(cid, path, recursive);
+    }
+
+    @Override
+    public int cfs_batch_get_inodes(long cid, int fd, long[] iids, DirentArray.ByValue stats, int count) {
+        return proxy.cfs_batch_get_inodes(cid, fd, iids, stats, count);
+    }
+
+    @Override
+    public int cfs_get_extent_locations(long cid, String path, long offset, long len, DirentArray.ByValue locs, int count) {
+        return proxy.cfs_get_extent_locations(cid, path, offset, len, locs, count);
+    }
+}
@@ -0,0 +1,223 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Lists a directory one readdir page at a time, so memory stays bounded by the page size whatever
+ * the size of the directory. With a prefetch pool the next page is read while the caller consumes
+ * the current one. The directory fd is closed once the listing is exhausted or fails, on
+ * {@link #close()}, once the iterator is dropped and collected, or when the file system is closed.
+ */
+class CubefsDirectoryIterator implements RemoteIterator<FileStatus>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    private final Path dir;
+    private final long blockSize;
+    private final int pageSize;
+    private final ExecutorService prefetchPool;
+    private final CubefsStatusCache statusCache;
+    private final Handle handle;
+    // closes the handle, through the listing tracker if any
+    private final Closeable closer;
+    private List<FileStatus> page;
+    private int index;
+    private boolean exhausted;
+
+    /**
+     * @param dir          qualified path of the directory opened as {@code fd}
+     * @param prefetchPool executor reading the next page ahead, or null to read pages on demand
+     * @param statusCache  cache filled with the listed statuses, or null
+     * @param listings     tracker to join until this listing is closed, or null
+     */
+    CubefsDirectoryIterator(CubefsMount cfs, int fd, Path dir, long blockSize, int pageSize,
+                            ExecutorService prefetchPool, CubefsStatusCache statusCache, CubefsListingTracker listings) {
+        this.dir = dir;
+        this.blockSize = blockSize;
+        this.pageSize = pageSize;
+        this.prefetchPool = prefetchPool;
+        this.statusCache = statusCache;
+        this.page = Collections.emptyList();
+        this.handle = new Handle(cfs, fd, dir);
+        this.closer = listings != null ? listings.track(this, handle) : handle;
+    }
+
+    /**
+     * The open directory, closed without the iterator by the listing tracker once the iterator is
+     * collected, so it must not refer to it.
+     */
+    private static final class Handle implements Closeable {
+        final CubefsMount cfs;
+        final Path dir;
+        int fd;
+        Future<List<FileStatus>> prefetch;
+        // reused for every page, fetches never overlap
+        CubefsDirPage dirPage;
+
+        Handle(CubefsMount cfs, int fd, Path dir) {
+            this.cfs = cfs;
+            this.fd = fd;
+            this.dir = dir;
+        }
+
+        @Override
+        public void close() {
+            if (fd < 0) {
+                return;
+            }
+            if (prefetch != null) {
+                try {
+                    prefetch.get();
+                } catch (Exception e) {
+                    LOG.debug("Prefetch of " + dir + " failed: " + e);
+                }
+                prefetch = null;
+            }
+            cfs.close(fd);
+            fd = -1;
+        }
+    }
+
+    /**
+     * Lists a single file.
+     */
+    CubefsDirectoryIterator(FileStatus file) {
+        this(null, -1, file.getPath(), 0, 0, null, null, null);
+        this.page = Collections.singletonList(file);
+        this.exhausted = true;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        while (index >= page.size()) {
+            if (exhausted) {
+                return false;
+            }
+            List<FileStatus> next;
+            try {
+                next = nextPage();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            if (next == null) {
+                exhausted = true;
+                close();
+                return false;
+            }
+            page = next;
+            index = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public FileStatus next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more entries in " + dir);
+        }
+        return page.get(index++);
+    }
+
+    private List<FileStatus> nextPage() throws IOException {
+        List<FileStatus> next;
+        if (handle.prefetch != null) {
+            Future<List<FileStatus>> f = handle.prefetch;
+            handle.prefetch = null;
+            next = await(f);
+        } else {
+            next = fetch();
+        }
+        if (next != null && prefetchPool != null) {
+            try {
+                handle.prefetch = prefetchPool.submit(new Callable<List<FileStatus>>() {
+                    @Override
+                    public List<FileStatus> call() throws IOException {
+                        return fetch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // read the next page on demand
+            }
+        }
+        return next;
+    }
+
+    private List<FileStatus> await(Future<List<FileStatus>> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing " + dir);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to list " + dir, cause);
+        }
+    }
+
+    /**
+     * Reads the next page of entries, returns null at the end of the directory. A page may be empty
+     * if its entries were removed between readdir and stat.
+     */
+    private List<FileStatus> fetch() throws IOException {
+        if (handle.dirPage == null) {
+            handle.dirPage = new CubefsDirPage(pageSize);
+        }
+        CubefsDirPage dirPage = handle.dirPage;
+        int count = handle.cfs.readdirPlus(handle.fd, dirPage, dir.toString());
+        if (count == 0) {
+            return null;
+        }
+        int num = dirPage.size();
+        List<FileStatus> result = new ArrayList<>(num);
+        for (int i = 0; i < num; i++) {
+            FileStatus status = CubefsFileSystem.toFileStatus(dirPage.length(i), dirPage.mode(i), dirPage.modificationTime(i),
+                    dirPage.accessTime(i), blockSize, new Path(dir, dirPage.name(i)));
+            if (statusCache != null) {
+                statusCache.put(status.getPath().toUri().getPath(), status);
+            }
+            result.add(status);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        exhausted = true;
+        page = Collections.emptyList();
+        closer.close();
+    }
+}
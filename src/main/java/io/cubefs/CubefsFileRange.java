@@ -0,0 +1,133 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A byte range of a file for {@link CubefsInputStream#readVectored}. Once the read is issued,
+ * {@link #getData()} completes with a buffer holding exactly {@link #getLength()} bytes.
+ */
+public class CubefsFileRange {
+    private final long offset;
+    private final int length;
+    private volatile CompletableFuture<ByteBuffer> data;
+
+    public CubefsFileRange(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public CompletableFuture<ByteBuffer> getData() {
+        return data;
+    }
+
+    public void setData(CompletableFuture<ByteBuffer> data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "range[" + offset + "," + (offset + length) + ")";
+    }
+
+    /**
+     * Sorts the ranges by offset and merges neighbours that are at most {@code minSeek} bytes apart,
+     * as long as the merged request stays within {@code maxMerged} bytes.
+     *
+     * @throws IllegalArgumentException if a range is negative or two ranges overlap
+     */
+    static List<Combined> merge(List<? extends CubefsFileRange> ranges, int minSeek, int maxMerged) {
+        List<CubefsFileRange> sorted = new ArrayList<CubefsFileRange>(ranges);
+        Collections.sort(sorted, new Comparator<CubefsFileRange>() {
+            @Override
+            public int compare(CubefsFileRange a, CubefsFileRange b) {
+                return Long.compare(a.offset, b.offset);
+            }
+        });
+        List<Combined> result = new ArrayList<>();
+        Combined current = null;
+        long lastEnd = -1;
+        for (CubefsFileRange r : sorted) {
+            if (r.offset < 0 || r.length < 0) {
+                throw new IllegalArgumentException("Invalid " + r);
+            }
+            if (r.offset < lastEnd) {
+                throw new IllegalArgumentException("Overlapping ranges, " + r + " starts before " + lastEnd);
+            }
+            lastEnd = r.offset + r.length;
+            if (current != null && r.offset - current.end <= minSeek && lastEnd - current.start <= maxMerged) {
+                current.end = lastEnd;
+                current.parts.add(r);
+            } else {
+                current = new Combined(r.offset);
+                current.end = lastEnd;
+                current.parts.add(r);
+                result.add(current);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One native read covering several user ranges.
+     */
+    static final class Combined {
+        final long start;
+        long end;
+        final List<CubefsFileRange> parts = new ArrayList<>();
+
+        Combined(long start) {
+            this.start = start;
+        }
+
+        int length() {
+            return (int) (end - start);
+        }
+
+        /**
+         * Completes every part with its slice of {@code buf}, which holds the bytes from {@link #start}.
+         */
+        void complete(ByteBuffer buf) {
+            for (CubefsFileRange r : parts) {
+                ByteBuffer slice = buf.duplicate();
+                int from = (int) (r.offset - start);
+                ((Buffer) slice).position(from);
+                ((Buffer) slice).limit(from + r.length);
+                r.getData().complete(slice.slice());
+            }
+        }
+
+        void fail(Throwable t) {
+            for (CubefsFileRange r : parts) {
+                r.getData().completeExceptionally(t);
+            }
+        }
+    }
+}
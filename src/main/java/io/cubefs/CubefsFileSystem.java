@@ -23,17 +23,33 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.security.UserGroupInformation;
-import org.apache.hadoop.util.DirectBufferPool;
 import org.apache.hadoop.util.Progressable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 
 /****************************************************************
  * Implement the Hadoop FileSystem API for Cubefs
@@ -46,25 +62,39 @@ public class CubefsFileSystem extends FileSystem {
     private String name;
     private long blockSize;
     private URI uri;
-    private CubefsMount cfs;
+    private CubefsClientPool clients;
+    // key of the clients shared through CubefsClientRegistry, null if they are owned
+    private String sharedClientsKey;
+    private boolean closed;
     private UserGroupInformation ugi;
     private FsPermission fsPermission;
     private String homeDirPrefix = "/user";
     private int bufferSize;
     private int readBufferSize;
+    private int ioThreads;
+    private CubefsReadOptions readOptions;
+    private CubefsWriteOptions writeOptions;
+    private ExecutorService ioPool;
+    private int walkThreads;
+    private ForkJoinPool walkPool;
+    private CubefsStatusCache statusCache;
+    private CubefsBlockLocations blockLocations;
+    private boolean listPrefetch;
+    private int readdirBatchSize;
+    private boolean nativeRecursiveDelete;
+    private final AtomicLong filesCreated = new AtomicLong();
+    // listings neither exhausted nor closed yet, closed with the file system
+    private final CubefsListingTracker openListings = new CubefsListingTracker();
     private final static int uMask = 0777;
     private final int maxRetryTimes = 10;
 
     private final static String CFS_SCHEME_NAME = "cfs";
-    private static final DirectBufferPool bufferPool = new DirectBufferPool();
+    private static final CubefsBufferPool bufferPool = new CubefsBufferPool();
 
     @Override
     public void initialize(URI uri, Configuration conf) throws IOException {
         super.initialize(uri, conf);
         setConf(conf);
-        if (cfs == null) {
-            cfs = new CubefsMount();
-        }
         String volumeName = uri.getHost();
         if (StringUtils.isEmpty(volumeName)) {
             throw new IOException("volume name is required.");
@@ -86,17 +116,40 @@ public class CubefsFileSystem extends FileSystem {
         }
 
 
-        cfs.setClient("volName", volumeName);
-        cfs.setClient("masterAddr", masterAddress);
-        cfs.setClient("logDir", logDir);
-        cfs.setClient("logLevel", logLevel);
-        cfs.setClient("enableBcache", enableBcache);
-        cfs.setClient("accessKey", accessKey);
-        cfs.setClient("secretKey", secretKey);
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("volName", volumeName);
+        options.put("masterAddr", masterAddress);
+        options.put("logDir", logDir);
+        options.put("logLevel", logLevel);
+        options.put("enableBcache", enableBcache);
+        options.put("accessKey", accessKey);
+        options.put("secretKey", secretKey);
+        int poolSize = Math.max(1, conf.getInt(CubefsConfigs.CFS_CLIENT_POOL_SIZE, CubefsConfigs.CFS_CLIENT_POOL_SIZE_DEFAULT));
+        String poolPolicy = conf.get(CubefsConfigs.CFS_CLIENT_POOL_POLICY, CubefsConfigs.CFS_CLIENT_POOL_POLICY_DEFAULT);
+        String startMode = conf.get(CubefsConfigs.CFS_CLIENT_START_MODE, CubefsConfigs.CFS_CLIENT_START_MODE_DEFAULT);
 
         blockSize = conf.getLong("cfs.block.size", conf.getLong("dfs.blocksize", 128 << 20));
         bufferSize = conf.getInt(CubefsConfigs.CFS_MIN_BUFFER_SIZE, CubefsConfigs.CFS_MIN_BUFFER_SIZE_DEFAULT);
         readBufferSize = conf.getInt(CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE, CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT);
+        ioThreads = conf.getInt(CubefsConfigs.CFS_IO_THREADS, CubefsConfigs.CFS_IO_THREADS_DEFAULT);
+        walkThreads = Math.max(1, conf.getInt(CubefsConfigs.CFS_TREE_WALK_THREADS, CubefsConfigs.CFS_TREE_WALK_THREADS_DEFAULT));
+        readOptions = CubefsReadOptions.fromConf(conf);
+        writeOptions = CubefsWriteOptions.fromConf(conf);
+        readdirBatchSize = Math.max(1, conf.getInt(CubefsConfigs.CFS_READDIR_BATCH_SIZE, CubefsConfigs.CFS_READDIR_BATCH_SIZE_DEFAULT));
+        nativeRecursiveDelete = conf.getBoolean(CubefsConfigs.CFS_DELETE_NATIVE_RECURSIVE, CubefsConfigs.CFS_DELETE_NATIVE_RECURSIVE_DEFAULT);
+        listPrefetch = conf.getBoolean(CubefsConfigs.CFS_LIST_PREFETCH_ENABLE, CubefsConfigs.CFS_LIST_PREFETCH_ENABLE_DEFAULT);
+        long statusTtl = 0;
+        long negativeTtl = 0;
+        if (conf.getBoolean(CubefsConfigs.CFS_METADATA_CACHE_ENABLE, CubefsConfigs.CFS_METADATA_CACHE_ENABLE_DEFAULT)) {
+            statusTtl = conf.getLong(CubefsConfigs.CFS_METADATA_CACHE_TTL_MS, CubefsConfigs.CFS_METADATA_CACHE_TTL_MS_DEFAULT);
+        }
+        if (conf.getBoolean(CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_ENABLE, CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_ENABLE_DEFAULT)) {
+            negativeTtl = conf.getLong(CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_TTL_MS, CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_TTL_MS_DEFAULT);
+        }
+        if (statusTtl > 0 || negativeTtl > 0) {
+            statusCache = new CubefsStatusCache(statusTtl, negativeTtl,
+                    conf.getInt(CubefsConfigs.CFS_METADATA_CACHE_MAX_ENTRIES, CubefsConfigs.CFS_METADATA_CACHE_MAX_ENTRIES_DEFAULT));
+        }
         this.ugi = UserGroupInformation.getCurrentUser();
         String userName = ugi.getUserName();
         String userGroup = "nogroup";
@@ -110,12 +163,31 @@ public class CubefsFileSystem extends FileSystem {
         this.workingDir = getHomeDirectory();
         LOG.debug("configure args: " + conf.toString());
 
-        int ret = cfs.startClient();
-        if (ret < 0) {
-            throw new IOException(String.format("Chubaofs initialize fail for cfs://%s,code=%s", volumeName, ret));
+        if (conf.getBoolean(CubefsConfigs.CFS_CLIENT_SHARE_ENABLE, CubefsConfigs.CFS_CLIENT_SHARE_ENABLE_DEFAULT)) {
+            sharedClientsKey = CubefsClientRegistry.key(conf, options, poolSize, poolPolicy);
+            clients = CubefsClientRegistry.acquire(sharedClientsKey, conf, options, poolSize, poolPolicy, startMode);
+        } else {
+            clients = new CubefsClientPool(conf, options, poolSize, poolPolicy);
+            clients.start(startMode);
+        }
+        if (conf.getBoolean(CubefsConfigs.CFS_METRICS_ENABLE, CubefsConfigs.CFS_METRICS_ENABLE_DEFAULT)) {
+            clients.getMetrics().register(bufferPool);
+        }
+        if (conf.getBoolean(CubefsConfigs.CFS_BLOCK_LOCATIONS_NATIVE_ENABLE, CubefsConfigs.CFS_BLOCK_LOCATIONS_NATIVE_ENABLE_DEFAULT)) {
+            blockLocations = new CubefsBlockLocations(clients,
+                    conf.getLong(CubefsConfigs.CFS_BLOCK_LOCATIONS_CACHE_TTL_MS, CubefsConfigs.CFS_BLOCK_LOCATIONS_CACHE_TTL_MS_DEFAULT),
+                    conf.getInt(CubefsConfigs.CFS_BLOCK_LOCATIONS_CACHE_MAX_ENTRIES, CubefsConfigs.CFS_BLOCK_LOCATIONS_CACHE_MAX_ENTRIES_DEFAULT));
         }
     }
 
+    /**
+     * Returns the native client for the next call, see {@link CubefsClientPool}, once the clients
+     * have started. An fd must only be used with the client that opened it.
+     */
+    CubefsMount mount() throws IOException {
+        return clients.next();
+    }
+
     @Override
     public String getScheme() {
         return CFS_SCHEME_NAME;
@@ -133,14 +205,77 @@ public class CubefsFileSystem extends FileSystem {
 
     @Override
     public FSDataInputStream open(Path path, int bufferSize) throws IOException {
-        statistics.incrementBytesRead(1);
+        statistics.incrementReadOps(1);
         // throws Exception if open fail.
+        CubefsMount cfs = mount();
         int fd = cfs.open(formatPath(path), CubefsMount.O_RDONLY, uMask);
         if (fd < 0) {
             throw CubefsMount.error(fd, formatPath(path));
         }
         LOG.debug("Open path: " + path.toString() + " bufferSize: " + bufferSize + " fd:" + fd);
-        return new FSDataInputStream(new CubefsInputStream(cfs, statistics, bufferPool, path, fd, checkReadBufferSize(bufferSize)));
+        return new FSDataInputStream(new CubefsInputStream(cfs, statistics, bufferPool, path, fd, checkReadBufferSize(bufferSize),
+                getIoPool(), readOptions));
+    }
+
+    /**
+     * Reads many ranges of one file, see {@link CubefsInputStream#readVectored}. The file is opened
+     * for the duration of the reads and closed once every range has completed.
+     */
+    public void readVectored(Path path, List<? extends CubefsFileRange> ranges, IntFunction<ByteBuffer> allocate) throws IOException {
+        FSDataInputStream in = open(path, readBufferSize);
+        try {
+            ((CubefsInputStream) in.getWrappedStream()).readVectored(ranges, allocate);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Bounded pool shared by the background I/O of all streams of this file system, created on first use.
+     */
+    synchronized ExecutorService getIoPool() {
+        if (ioPool == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(ioThreads, ioThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("cfs-io-" + uri.getHost()));
+            pool.allowCoreThreadTimeOut(true);
+            ioPool = pool;
+        }
+        return ioPool;
+    }
+
+    /**
+     * Fork-join pool walking directory trees for getContentSummary and delete, and running bulk
+     * deletes and renames, created on first use. Recursive listFiles walks run on pools of their own.
+     */
+    synchronized ForkJoinPool getWalkPool() {
+        if (walkPool == null) {
+            walkPool = newWalkPool("cfs-walk-" + uri.getHost() + "-");
+        }
+        return walkPool;
+    }
+
+    private ForkJoinPool newWalkPool(final String prefix) {
+        return new ForkJoinPool(walkThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName(prefix + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }
+        }, null, false);
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger seq = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
     }
 
     private int checkBufferSize(int bufferSize) {
@@ -163,49 +298,112 @@ public class CubefsFileSystem extends FileSystem {
                 + Integer.toHexString((int) permission.toShort()) + " overwrite: " + overwrite + " bufferSize: " + bufferSize
                 + " replication: " + replication + " blockSize: " + blockSize + " progress: " + progress);
         statistics.incrementWriteOps(1);
+        CubefsMount cfs = mount();
+        int fd = openForCreate(cfs, path, overwrite, true);
+        return newOutputStream(path, new CubefsOutputStream(cfs, statistics, bufferPool, fd, 0L, checkBufferSize(bufferSize),
+                getIoPool(), writeOptions));
+    }
 
-        int flags = CubefsMount.O_WRONLY | CubefsMount.O_CREAT;
-        while (true) {
-            int fd = cfs.open(formatPath(path), flags, uMask);
-            if (fd == CubefsMount.ENOENT) {
-                Path parent = path.getParent();
-                fsPermission = FsPermission.getDirDefault().applyUMask(FsPermission.getUMask(getConf()));
-                try {
-                    mkdirs(parent);
-                } catch (Exception e) {
+    /**
+     * Creates a file whose parent directory must already exist, without looking parents up or creating them.
+     */
+    @Override
+    public FSDataOutputStream createNonRecursive(Path path, FsPermission permission, EnumSet<CreateFlag> flags,
+                                                 int bufferSize, short replication, long blockSize,
+                                                 Progressable progress) throws IOException {
+        LOG.debug("Create non recursive path: " + path.toString() + " flags: " + flags);
+        statistics.incrementWriteOps(1);
+        CubefsMount cfs = mount();
+        int fd = openForCreate(cfs, path, flags.contains(CreateFlag.OVERWRITE), false);
+        return newOutputStream(path, new CubefsOutputStream(cfs, statistics, bufferPool, fd, 0L, checkBufferSize(bufferSize),
+                getIoPool(), writeOptions));
+    }
 
-                }
-                continue;
-            }
-            if (fd == CubefsMount.EEXIST) {
-                if (!overwrite || isDirectory(path)) {
-                    throw new FileAlreadyExistsException(formatPath(path));
-                }
-                flags |= CubefsMount.O_TRUNC;
-                continue;
+    /**
+     * Opens {@code path} for writing as a new empty file. The file is opened with O_CREAT and no
+     * O_TRUNC, which libcfs refuses with EEXIST on an existing entry, so a new file whose parent
+     * exists takes a single cfs_open. Only then is the existing entry looked up, to refuse a
+     * directory, and truncated by a second open when {@code overwrite} is set. libcfs has no open
+     * flag creating missing parents: in a missing directory the open fails with ENOENT and, if
+     * {@code createParent} is set, the parents are created and the file opened again, which takes
+     * the failed open, the mkdirs calls and a second open.
+     */
+    private int openForCreate(CubefsMount cfs, Path path, boolean overwrite, boolean createParent) throws IOException {
+        String p = formatPath(path);
+        int flags = CubefsMount.O_WRONLY | CubefsMount.O_CREAT;
+        int fd = cfs.open(p, flags, uMask);
+        if (fd == CubefsMount.ENOENT && createParent && path.getParent() != null) {
+            try {
+                createDirectories(path.getParent());
+            } catch (FileAlreadyExistsException | ParentNotDirectoryException e) {
+                // an ancestor is a file
+                ParentNotDirectoryException notDir = new ParentNotDirectoryException("Parent of " + p + " is not a directory");
+                notDir.initCause(e);
+                throw notDir;
             }
-            if (fd < 0) {
-                throw CubefsMount.error(fd, formatPath(path));
+            fd = cfs.open(p, flags, uMask);
+        }
+        if (fd == CubefsMount.EEXIST && overwrite) {
+            CubefsLib.StatInfo stat = new CubefsLib.StatInfo();
+            if (lookup(p, stat) && isDir(stat.mode)) {
+                throw new FileAlreadyExistsException(p + " is a directory");
             }
-            return new FSDataOutputStream(new CubefsOutputStream(cfs, statistics, fd, 0L, checkBufferSize(bufferSize)), statistics);
+            fd = cfs.open(p, flags | CubefsMount.O_TRUNC, uMask);
         }
-
+        if (fd == CubefsMount.EEXIST || fd == CubefsMount.EISDIR) {
+            throw new FileAlreadyExistsException(p);
+        }
+        if (fd == CubefsMount.ENOENT) {
+            throw new FileNotFoundException("Parent directory of " + p + " does not exist");
+        }
+        if (fd == CubefsMount.ENOTDIR) {
+            throw new ParentNotDirectoryException("Parent of " + p + " is not a directory");
+        }
+        if (fd < 0) {
+            throw CubefsMount.error(fd, p);
+        }
+        uncache(path);
+        filesCreated.incrementAndGet();
+        return fd;
     }
 
     @Override
     public FSDataOutputStream append(Path path, int bufferSize, Progressable progressable) throws IOException {
         statistics.incrementWriteOps(1);
         LOG.debug("Append path: " + path.toString());
+        CubefsMount cfs = mount();
         int fd = cfs.open(formatPath(path), CubefsMount.O_WRONLY | CubefsMount.O_APPEND, uMask);
         if (fd < 0) {
             throw CubefsMount.error(fd, formatPath(path));
         }
+        // the stream starts at the current length, which must not come from the cache
+        uncache(path);
         FileStatus status = getFileStatus(path);
         if (status.isDirectory()) {
             throw new FileAlreadyExistsException("Cannot append to directory " + formatPath(path) + "; already exists as a directory.");
         }
 
-        return new FSDataOutputStream(new CubefsOutputStream(cfs, statistics, fd, status.getLen(), checkBufferSize(bufferSize)), statistics);
+        return newOutputStream(path, new CubefsOutputStream(cfs, statistics, bufferPool, fd, status.getLen(), checkBufferSize(bufferSize),
+                getIoPool(), writeOptions));
+    }
+
+    /**
+     * Wraps {@code out} so that closing it drops the cached status of {@code path}, whose length has changed.
+     */
+    private FSDataOutputStream newOutputStream(final Path path, CubefsOutputStream out) throws IOException {
+        if (statusCache == null) {
+            return new FSDataOutputStream(out, statistics);
+        }
+        return new FSDataOutputStream(out, statistics) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    uncache(path);
+                }
+            }
+        };
     }
 
     /**
@@ -218,121 +416,304 @@ public class CubefsFileSystem extends FileSystem {
     @Override
     public boolean rename(Path src, Path dst) throws IOException {
         statistics.incrementWriteOps(1);
-        if (exists(dst)) {
-            return false;
-        }
-        int r = cfs.rename(formatPath(src), formatPath(dst));
-        if (r == CubefsMount.EEXIST) {
-            try {
-                FileStatus st = getFileStatus(dst);
-                if (st.isDirectory()) {
-                    dst = new Path(dst, src.getName());
-                    r = cfs.rename(formatPath(src), formatPath(dst));
-                } else {
+        String from = formatPath(src);
+        String to = formatPath(dst);
+        // the rename never replaces, the destination is only looked up when it is in the way
+        int r = mount().rename(from, to);
+        if (isInTheWay(r)) {
+            CubefsLib.StatInfo stat = new CubefsLib.StatInfo();
+            if (lookup(to, stat)) {
+                if (!isDir(stat.mode)) {
+                    return false;
+                }
+                dst = new Path(dst, src.getName());
+                r = mount().rename(from, formatPath(dst));
+                if (isInTheWay(r)) {
                     return false;
                 }
-            } catch (FileNotFoundException ignored) {
             }
-
         }
-        if (r == CubefsMount.ENOENT || r == CubefsMount.EEXIST) {
+        if (r == CubefsMount.ENOENT) {
             return false;
         }
         if (r < 0) {
-            throw CubefsMount.error(r, formatPath(src));
+            throw CubefsMount.error(r, from);
         }
+        uncacheTree(src);
+        uncacheTree(dst);
         return true;
     }
 
+    /**
+     * Whether a rename failed because of an existing destination.
+     */
+    private static boolean isInTheWay(int r) {
+        return r == CubefsMount.EEXIST || r == CubefsMount.EISDIR || r == CubefsMount.ENOTDIR
+                || r == CubefsMount.ENOTEMPTY;
+    }
+
+    /**
+     * Looks {@code p} up in the volume, bypassing the status cache, and returns whether it exists.
+     */
+    private boolean lookup(String p, CubefsLib.StatInfo stat) throws IOException {
+        statistics.incrementReadOps(1);
+        try {
+            mount().getAttr(p, stat);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
 
     @Override
     public boolean delete(Path path, boolean recursive) throws IOException {
+        return delete(path, recursive, new CubefsDeleteProgress());
+    }
+
+    /**
+     * Deletes {@code path}. A recursive delete of a directory unlinks files and lists subdirectories
+     * concurrently on the tree walk pool and removes directories bottom-up, see {@link CubefsDeleteTask},
+     * or hands the whole tree to libcfs if {@link CubefsConfigs#CFS_DELETE_NATIVE_RECURSIVE} is set.
+     * It stops at the first error, leaving the rest of the tree in place.
+     *
+     * @param progress updated with the entries removed as the delete proceeds
+     */
+    public boolean delete(Path path, boolean recursive, CubefsDeleteProgress progress) throws IOException {
         statistics.incrementWriteOps(1);
-        int r = cfs.unlink(formatPath(path));
+        String p = formatPath(path);
+        int r = mount().unlink(p);
         if (r == 0) {
+            uncache(path);
+            progress.fileDeleted();
             return true;
         }
         if (r == CubefsMount.ENOENT) {
             return false;
         }
-        if (r == CubefsMount.EISDIR) {
-            //get directory contents
-            FileStatus[] fileStatuses = listStatus(path);
-            if (fileStatuses == null) {
-                return false;
-            }
-            if (!recursive && ArrayUtils.isNotEmpty(fileStatuses)) {
-                throw new PathIsNotEmptyDirectoryException(path.toString());
-            }
-            for (FileStatus fs : fileStatuses) {
-                if (!delete(fs.getPath(), recursive)) {
-                    return false;
+        if (r != CubefsMount.EISDIR) {
+            throw CubefsMount.error(r, p);
+        }
+        try {
+            if (!recursive) {
+                CubefsDirectoryIterator it = openDirectory(path);
+                try {
+                    if (it.hasNext()) {
+                        throw new PathIsNotEmptyDirectoryException(path.toString());
+                    }
+                } finally {
+                    it.close();
                 }
+                mount().rmdir(p, false);
+                progress.directoryDeleted();
+            } else if (nativeRecursiveDelete) {
+                mount().rmdir(p, true);
+                progress.directoryDeleted();
+            } else {
+                CubefsDeleteTask task = new CubefsDeleteTask(clients, p, readdirBatchSize, progress);
+                getWalkPool().invoke(task);
+                task.check();
             }
-        } else {
-            CubefsMount.error(r, formatPath(path));
+        } finally {
+            uncacheTree(path);
         }
-        cfs.rmdir(formatPath(path), true);
+        LOG.debug("Deleted " + p + ": " + progress);
         return true;
     }
 
+    /**
+     * Deletes a batch of files, unlinking them concurrently on the tree walk pool. Every path is
+     * attempted whatever the outcome of the others. Files that do not exist count as deleted,
+     * directories are not deleted and fail with {@link PathIsDirectoryException}.
+     *
+     * @return the paths that could not be deleted with their error, empty if all were deleted
+     */
+    public Map<Path, IOException> bulkDelete(Collection<Path> paths) throws IOException {
+        Path[] targets = paths.toArray(new Path[paths.size()]);
+        final String[] names = new String[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            names[i] = formatPath(targets[i]);
+        }
+        statistics.incrementWriteOps(targets.length);
+        Map<Path, IOException> failures = new ConcurrentHashMap<>();
+        try {
+            getWalkPool().invoke(new CubefsBulkTask(new CubefsBulkTask.Op() {
+                @Override
+                public void apply(int i) throws IOException {
+                    int r = mount().unlink(names[i]);
+                    if (r == CubefsMount.EISDIR) {
+                        throw new PathIsDirectoryException(names[i]);
+                    }
+                    if (r < 0 && r != CubefsMount.ENOENT) {
+                        throw CubefsMount.error(r, names[i]);
+                    }
+                }
+            }, targets, 0, targets.length, failures));
+        } finally {
+            for (Path path : targets) {
+                uncache(path);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Moves a batch of files or directories into {@code dstDir}, keeping their names, with one
+     * concurrent cfs_rename each on the tree walk pool. Every path is attempted whatever the outcome
+     * of the others. An existing entry in {@code dstDir} is not replaced and fails with
+     * {@link FileAlreadyExistsException}.
+     *
+     * @return the paths that could not be moved with their error, empty if all were moved
+     */
+    public Map<Path, IOException> renameInto(Collection<Path> paths, Path dstDir) throws IOException {
+        final Path[] sources = paths.toArray(new Path[paths.size()]);
+        final String[] names = new String[sources.length];
+        final String[] targets = new String[sources.length];
+        String dir = formatPath(dstDir);
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+        for (int i = 0; i < sources.length; i++) {
+            names[i] = formatPath(sources[i]);
+            targets[i] = prefix + sources[i].getName();
+        }
+        statistics.incrementWriteOps(sources.length);
+        Map<Path, IOException> failures = new ConcurrentHashMap<>();
+        try {
+            getWalkPool().invoke(new CubefsBulkTask(new CubefsBulkTask.Op() {
+                @Override
+                public void apply(int i) throws IOException {
+                    int r = mount().rename(names[i], targets[i]);
+                    if (r == CubefsMount.EEXIST) {
+                        throw new FileAlreadyExistsException(targets[i]);
+                    }
+                    if (r < 0) {
+                        throw CubefsMount.error(r, names[i]);
+                    }
+                }
+            }, sources, 0, sources.length, failures));
+        } finally {
+            for (Path path : sources) {
+                uncacheTree(path);
+            }
+            uncacheTree(dstDir);
+        }
+        return failures;
+    }
 
     @Override
     public FileStatus[] listStatus(Path path) throws IOException {
         statistics.incrementReadOps(1);
-        int batchSize = 100;
-        FileStatus fileStatus = getFileStatus(path);
-        if (fileStatus.isFile()) {
-            return new FileStatus[]{fileStatus};
-        }
-        int fd = cfs.open(formatPath(path), CubefsMount.O_RDONLY, uMask);
-        if (fd < 0) {
-            throw CubefsMount.error(fd, formatPath(path));
-        }
+        CubefsDirectoryIterator it = listDirectory(path);
         ArrayList<FileStatus> arrayList = new ArrayList<>();
+        try {
+            while (it.hasNext()) {
+                arrayList.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        FileStatus[] fileStatuses = new FileStatus[arrayList.size()];
+        return arrayList.toArray(fileStatuses);
+    }
 
-        while (true) {
-            CubefsLib.Dirent dirent = new CubefsLib.Dirent();
-            CubefsLib.Dirent[] dirents = (CubefsLib.Dirent[]) dirent.toArray(100);
+    /**
+     * Lists the directory lazily, one readdir page at a time. The directory stays open until the
+     * iterator is exhausted or fails. The iterator is {@link Closeable}: callers that stop early
+     * should close it, otherwise the directory is closed once the iterator is collected, by a later
+     * listing, or with the file system.
+     */
+    @Override
+    public RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+        statistics.incrementReadOps(1);
+        return listDirectory(path);
+    }
 
-            int count = cfs.readdir(fd, dirents, dirents.length);
-            if (count < 0) {
-                cfs.close(fd);
-                throw new IOException(String.format("readdir fail for %s,code=%s", path, count));
-            }
-            if (count == 0) {
-                break;
-            }
-            long[] inodes = new long[count];
-            Map<Long, String> names = new HashMap<Long, String>(count);
-            for (int i = 0; i < count; i++) {
-                inodes[i] = dirents[i].ino;
-                names.put(dirents[i].ino, new String(dirents[i].name, 0, dirents[i].nameLen, "utf-8"));
-            }
-            CubefsLib.StatInfo statInfo = new CubefsLib.StatInfo();
-            CubefsLib.StatInfo[] statInfos = (CubefsLib.StatInfo[]) statInfo.toArray(count);
-            CubefsLib.DirentArray.ByValue direntArray = new CubefsLib.DirentArray.ByValue();
-
-            direntArray.data = statInfos[0].getPointer();
-            direntArray.len = batchSize;
-            direntArray.cap = batchSize;
-            int num = cfs.cfs_batch_get_inodes(fd, inodes, direntArray, count);
-            if (num < 0) {
-                throw new IOException(String.format("cfs_batch_get_inodes fail for %s,code=%s", path, count));
+    /**
+     * Lists the directory lazily like {@link #listStatusIterator(Path)}, with block locations. The
+     * iterator is {@link Closeable} in the same way.
+     */
+    @Override
+    protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path path, final PathFilter filter) throws IOException {
+        statistics.incrementReadOps(1);
+        return new LocatedIterator(listDirectory(path), path, filter);
+    }
+
+    private final class LocatedIterator implements RemoteIterator<LocatedFileStatus>, Closeable {
+        private final CubefsDirectoryIterator it;
+        private final Path path;
+        private final PathFilter filter;
+        private LocatedFileStatus next;
+
+        LocatedIterator(CubefsDirectoryIterator it, Path path, PathFilter filter) {
+            this.it = it;
+            this.path = path;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            while (next == null && it.hasNext()) {
+                FileStatus st = it.next();
+                if (filter == null || filter.accept(st.getPath())) {
+                    next = new LocatedFileStatus(st, st.isFile() ? getFileBlockLocations(st, 0, st.getLen()) : null);
+                }
             }
-            for (int i = 0; i < num; i++) {
-                statInfos[i].read();
-                CubefsLib.StatInfo stat = statInfos[i];
-                FileStatus status = new FileStatus(stat.size, isDir(stat.mode),
-                        3, blockSize, stat.mtime * 1000 + (long) (stat.mtime_nsec / Math.pow(10, 6)),
-                        stat.atime * 1000 + (long) (stat.atime_nsec / Math.pow(10, 6)), new FsPermission((short) stat.mode),
-                        System.getProperty("user.name"), System.getProperty("user.name"), new Path(makeQualified(path), names.get(stat.ino)));
-                arrayList.add(status);
+            return next != null;
+        }
+
+        @Override
+        public LocatedFileStatus next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries in " + path);
             }
+            LocatedFileStatus result = next;
+            next = null;
+            return result;
+        }
 
+        @Override
+        public void close() throws IOException {
+            next = null;
+            it.close();
         }
-        FileStatus[] fileStatuses = new FileStatus[arrayList.size()];
-        return arrayList.toArray(fileStatuses);
+    }
+
+    /**
+     * Lists all files below {@code path}. A recursive listing walks the subdirectories concurrently
+     * on up to {@link CubefsConfigs#CFS_TREE_WALK_THREADS} threads, see {@link CubefsTreeWalker};
+     * its iterator is {@link Closeable}, callers that stop early should close it to stop the walk.
+     */
+    @Override
+    public RemoteIterator<LocatedFileStatus> listFiles(Path path, boolean recursive) throws IOException {
+        if (!recursive) {
+            return super.listFiles(path, false);
+        }
+        FileStatus status = getFileStatus(path);
+        if (status.isFile()) {
+            return super.listFiles(path, true);
+        }
+        // a pool per walk: its tasks block while the caller does not consume
+        return new CubefsTreeWalker(this, status.getPath(), newWalkPool("cfs-list-" + uri.getHost() + "-"), statistics,
+                openListings);
+    }
+
+    private CubefsDirectoryIterator listDirectory(Path path) throws IOException {
+        FileStatus fileStatus = getFileStatus(path);
+        if (fileStatus.isFile()) {
+            return new CubefsDirectoryIterator(fileStatus);
+        }
+        return openDirectory(path);
+    }
+
+    /**
+     * Lists {@code path}, which is expected to be a directory.
+     */
+    CubefsDirectoryIterator openDirectory(Path path) throws IOException {
+        CubefsMount cfs = mount();
+        int fd = cfs.open(formatPath(path), CubefsMount.O_RDONLY, uMask);
+        if (fd < 0) {
+            throw CubefsMount.error(fd, formatPath(path));
+        }
+        return new CubefsDirectoryIterator(cfs, fd, makeQualified(path), blockSize, readdirBatchSize,
+                listPrefetch ? getIoPool() : null, statusCache, openListings);
     }
 
     @Override
@@ -355,48 +736,155 @@ public class CubefsFileSystem extends FileSystem {
     @Override
     public boolean mkdirs(Path path, FsPermission fsPermission) {
         statistics.incrementWriteOps(1);
-        int r = -1;
         if (path == null) {
             throw new IllegalArgumentException("path is required");
         }
         if ("/".equals(formatPath(path))) {
             return true;
         }
+        try {
+            createDirectories(path);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("mkdir error, path:" + path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates {@code path} and its missing parents, retrying failures up to maxRetryTimes. A file in
+     * the way is not retried. Throws the last failure.
+     */
+    private void createDirectories(Path path) throws IOException {
+        IOException failure = null;
         for (int i = 0; i < maxRetryTimes; ++i) {
             try {
-                r = cfs.mkdirs(this.formatPath(path), uMask);
-                if (r == 0) {
-                    break;
-                }
-                Thread.sleep(100L);
-            } catch (InterruptedException e1) {
+                mount().mkdirs(this.formatPath(path), uMask);
+                uncache(path);
+                return;
+            } catch (FileAlreadyExistsException | ParentNotDirectoryException e) {
+                throw e;
             } catch (IOException e) {
                 LOG.warn("mkdir error, path:" + path + " retry idx: " + i);
+                failure = e;
             }
         }
-
-        return r == 0 ? true : false;
-
+        throw failure;
     }
 
     @Override
     public FileStatus getFileStatus(Path path) throws IOException {
         statistics.incrementReadOps(1);
+        String p = formatPath(path);
+        if (statusCache != null) {
+            FileStatus cached = statusCache.get(p);
+            if (cached == CubefsStatusCache.MISSING) {
+                throw new FileNotFoundException("No such file or directory: " + p);
+            }
+            if (cached != null) {
+                return cached;
+            }
+        }
         CubefsLib.StatInfo stat = new CubefsLib.StatInfo();
-        cfs.getAttr(formatPath(path), stat);
-        //todo set user-group
-        FileStatus status = new FileStatus(stat.size, isDir(stat.mode),
-                3, blockSize, stat.mtime * 1000 + (long) (stat.mtime_nsec / Math.pow(10, 6)),
-                stat.atime * 1000 + (long) (stat.atime_nsec / Math.pow(10, 6)), new FsPermission((short) stat.mode),
-                System.getProperty("user.name"), System.getProperty("user.name"), makeQualified(path));
+        try {
+            mount().getAttr(p, stat);
+        } catch (FileNotFoundException e) {
+            if (statusCache != null) {
+                statusCache.putMissing(p);
+            }
+            throw e;
+        }
+        FileStatus status = toFileStatus(stat, blockSize, makeQualified(path));
+        if (statusCache != null) {
+            statusCache.put(p, status);
+        }
         return status;
     }
 
-    private boolean isDir(int mode) {
+    private void uncache(Path path) {
+        if (statusCache != null) {
+            statusCache.invalidate(formatPath(path));
+        }
+        if (blockLocations != null) {
+            blockLocations.invalidate(formatPath(path));
+        }
+    }
+
+    private void uncacheTree(Path path) {
+        if (statusCache != null) {
+            statusCache.invalidateTree(formatPath(path));
+        }
+    }
+
+    /**
+     * Number of {@link #getFileStatus} calls answered from the metadata cache.
+     */
+    public long getStatusCacheHits() {
+        return statusCache == null ? 0 : statusCache.hits();
+    }
+
+    /**
+     * Number of {@link #getFileStatus} calls failed from the metadata cache because the path was recently found missing.
+     */
+    public long getStatusCacheNegativeHits() {
+        return statusCache == null ? 0 : statusCache.negativeHits();
+    }
+
+    /**
+     * Number of {@link #getFileStatus} calls that went to the meta nodes while the metadata cache is enabled.
+     */
+    public long getStatusCacheMisses() {
+        return statusCache == null ? 0 : statusCache.misses();
+    }
+
+    /**
+     * Microseconds spent loading libcfs ({@code load}), creating and configuring the native
+     * clients ({@code create}) and starting them ({@code start}), and waited by calls for the
+     * startup to complete ({@code wait}). Empty until the clients have started.
+     */
+    public Map<String, Long> getStartupMicros() {
+        return clients.getStartupMicros();
+    }
+
+    /**
+     * Number of files opened by {@link #create} and {@link #createNonRecursive}.
+     */
+    public long getFilesCreated() {
+        return filesCreated.get();
+    }
+
+    /**
+     * Number of native calls made to the meta nodes by all native clients, see {@link CubefsMount#getMetadataOps()}.
+     */
+    public long getMetadataOps() {
+        return clients.getMetadataOps();
+    }
+
+    static FileStatus toFileStatus(CubefsLib.StatInfo stat, long blockSize, Path path) {
+        return toFileStatus(stat.size, stat.mode, stat.mtime * 1000 + (long) (stat.mtime_nsec / Math.pow(10, 6)),
+                stat.atime * 1000 + (long) (stat.atime_nsec / Math.pow(10, 6)), blockSize, path);
+    }
+
+    /**
+     * @param mtime modification time in milliseconds
+     * @param atime access time in milliseconds
+     */
+    static FileStatus toFileStatus(long length, int mode, long mtime, long atime, long blockSize, Path path) {
+        //todo set user-group
+        return new FileStatus(length, isDir(mode), 3, blockSize, mtime, atime, new FsPermission((short) mode),
+                System.getProperty("user.name"), System.getProperty("user.name"), path);
+    }
+
+    private static boolean isDir(int mode) {
         return (mode & CubefsMount.S_IFDIR) == CubefsMount.S_IFDIR;
     }
 
 
+    /**
+     * Returns the data nodes holding the extents of {@code file}, see {@link CubefsBlockLocations}. If
+     * libcfs cannot report them, or {@link CubefsConfigs#CFS_BLOCK_LOCATIONS_NATIVE_ENABLE} is off,
+     * every block gets a made up host, which gives schedulers no locality.
+     */
     @Override
     public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) throws IOException {
         if (file == null) {
@@ -408,6 +896,19 @@ public class CubefsFileSystem extends FileSystem {
         if (file.getLen() <= start) {
             return new BlockLocation[0];
         }
+        if (blockLocations != null && file.isFile()) {
+            String p = formatPath(file.getPath());
+            try {
+                BlockLocation[] locations = blockLocations.get(p, file, start, len);
+                if (locations != null) {
+                    return locations;
+                }
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                LOG.debug("Failed to get the extent locations of " + p + ", using synthetic block locations: " + e);
+            }
+        }
         ArrayList<BlockLocation> resultList = new ArrayList();
         long totalLen = file.getLen();
         long blockSize = file.getBlockSize();
@@ -429,10 +930,25 @@ public class CubefsFileSystem extends FileSystem {
         return resultList.toArray(results);
     }
 
+    /**
+     * Sums the tree below {@code f} with a parallel walk on the tree walk pool, see {@link CubefsSummaryTask}.
+     */
     @Override
     public ContentSummary getContentSummary(Path f) throws IOException {
-        //todo
-        return super.getContentSummary(f);
+        statistics.incrementReadOps(1);
+        FileStatus status = getFileStatus(f);
+        if (status.isFile()) {
+            return new ContentSummary(status.getLen(), 1, 0, -1, status.getLen(), -1);
+        }
+        long[] totals;
+        try {
+            totals = getWalkPool().invoke(new CubefsSummaryTask(clients, formatPath(f), readdirBatchSize));
+        } catch (RuntimeException e) {
+            throw CubefsSummaryTask.unwrap(e);
+        }
+        long length = totals[CubefsSummaryTask.LENGTH];
+        return new ContentSummary(length, totals[CubefsSummaryTask.FILES], totals[CubefsSummaryTask.DIRECTORIES],
+                -1, length, -1);
     }
 
     @Override
@@ -443,6 +959,23 @@ public class CubefsFileSystem extends FileSystem {
     @Override
     public void close() throws IOException {
         super.close();
-        cfs.closeClient();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (ioPool != null) {
+                ioPool.shutdown();
+            }
+            if (walkPool != null) {
+                walkPool.shutdownNow();
+            }
+        }
+        openListings.closeAll();
+        if (sharedClientsKey != null) {
+            CubefsClientRegistry.release(sharedClientsKey);
+        } else {
+            clients.close();
+        }
     }
 }
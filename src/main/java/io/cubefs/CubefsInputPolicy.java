@@ -0,0 +1,54 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Access pattern hint for {@link CubefsInputStream}, set with {@link CubefsConfigs#CFS_INPUT_FADVISE}.
+ */
+public enum CubefsInputPolicy {
+    /**
+     * Starts sequential and switches to random after repeated seeks out of the buffer,
+     * back to sequential once the reader streams again.
+     */
+    NORMAL,
+    /**
+     * Always reads full buffers and starts read-ahead on the first refill.
+     */
+    SEQUENTIAL,
+    /**
+     * Reads only what the caller asked for, at least {@link CubefsConfigs#CFS_INPUT_RANDOM_READ_SIZE}
+     * bytes, and never reads ahead.
+     */
+    RANDOM;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    public static CubefsInputPolicy fromString(String name) {
+        if (name == null) {
+            return NORMAL;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown input policy " + name + ", using " + NORMAL);
+            return NORMAL;
+        }
+    }
+}
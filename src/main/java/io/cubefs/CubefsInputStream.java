@@ -18,6 +18,7 @@ package io.cubefs;
 
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -25,12 +26,20 @@ import org.apache.hadoop.util.DirectBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 
-public class CubefsInputStream extends FSInputStream {
+public class CubefsInputStream extends FSInputStream implements ByteBufferReadable {
     private int fd;
     private ByteBuffer bf;
     private Pointer pbuf;
@@ -38,40 +47,125 @@ public class CubefsInputStream extends FSInputStream {
     private long fileOffset;
     private long bufferSize;
     private long bufferOffset;
-    private boolean closed;
+    private int bufferCapacity;
+    private volatile boolean closed;
     private String path;
     private DirectBufferPool bufferPool;
+    private CubefsReadAhead readAhead;
+    private long lastRefillEnd;
+    private int sequentialRefills;
+    private CubefsInputPolicy inputPolicy;
+    private int randomReadSize;
+    private int randomSeeks;
+    private ExecutorService ioPool;
+    private int vectoredMinSeek;
+    private int vectoredMaxMerged;
+    // the stream itself plus every vectored read in flight; the fd is closed when this drops to 0
+    private final AtomicInteger fdRefs = new AtomicInteger(1);
+    // read-ahead kicks in once this many consecutive buffer refills were sequential
+    private static final int READ_AHEAD_TRIGGER = 2;
+    // the NORMAL policy turns random after this many seeks out of the buffer in a row
+    private static final int RANDOM_SEEK_TRIGGER = 2;
     private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
 
     public CubefsInputStream(CubefsMount cfs, FileSystem.Statistics statistics, DirectBufferPool bufferPool, Path path, int fd, int bufferSize
     ) {
+        this(cfs, statistics, bufferPool, path, fd, bufferSize, null, CubefsReadOptions.DEFAULT);
+    }
+
+    /**
+     * @param ioPool executor for read-ahead and vectored reads, or null to do everything in the caller
+     */
+    CubefsInputStream(CubefsMount cfs, FileSystem.Statistics statistics, DirectBufferPool bufferPool, Path path, int fd, int bufferSize,
+                      ExecutorService ioPool, CubefsReadOptions options) {
         this.cfs = cfs;
         this.fd = fd;
         this.bufferPool = bufferPool;
+        this.bufferCapacity = bufferSize;
         this.bf = this.bufferPool.getBuffer(bufferSize);
         this.pbuf = Native.getDirectBufferPointer(bf);
         this.bf.limit(0);
         this.path = path.toString();
+        this.ioPool = ioPool;
+        this.inputPolicy = options.inputPolicy;
+        this.randomReadSize = options.randomReadSize;
+        this.vectoredMinSeek = options.vectoredMinSeek;
+        this.vectoredMaxMerged = options.vectoredMaxMerged;
+        if (ioPool != null && options.readAheadDepth > 0) {
+            this.readAhead = new CubefsReadAhead(cfs, ioPool, bufferPool, fd, this.path, options.readAheadDepth,
+                    Math.max(options.readAheadSize, bufferSize));
+        }
+    }
 
+    private boolean isRandom() {
+        return inputPolicy == CubefsInputPolicy.RANDOM
+                || (inputPolicy == CubefsInputPolicy.NORMAL && randomSeeks >= RANDOM_SEEK_TRIGGER);
     }
 
-    private int checkAndReadFromCfs() throws IOException {
+    /**
+     * Refills the buffer if it is exhausted.
+     *
+     * @param wanted number of bytes the caller is about to read, bounds the refill in random mode
+     */
+    private int checkAndReadFromCfs(int wanted) throws IOException {
         if (bufferOffset == bufferSize) {
-            ((Buffer) bf).clear(); // 兼容java 1.8，clear需要转一下类型
-            long size = cfs.read(fd, pbuf, (long) bf.capacity(), fileOffset, path);
+            if (fileOffset == lastRefillEnd) {
+                sequentialRefills++;
+                if (sequentialRefills >= READ_AHEAD_TRIGGER) {
+                    randomSeeks = 0;
+                }
+            } else {
+                sequentialRefills = 1;
+                if (readAhead != null) {
+                    readAhead.cancel();
+                }
+            }
+            boolean random = isRandom();
+            int trigger = inputPolicy == CubefsInputPolicy.SEQUENTIAL ? 1 : READ_AHEAD_TRIGGER;
+            long size = -1;
+            if (readAhead != null && !random && sequentialRefills >= trigger) {
+                size = readFromReadAhead();
+            }
+            if (size < 0) {
+                if (random && readAhead != null) {
+                    readAhead.cancel();
+                }
+                long readSize = bf.capacity();
+                if (random) {
+                    readSize = Math.min(readSize, Math.max(wanted, randomReadSize));
+                }
+                ((Buffer) bf).clear(); // 兼容java 1.8，clear需要转一下类型
+                size = cfs.read(fd, pbuf, readSize, fileOffset, path);
+            }
             if (size == 0) {
                 return -1;
             }
             bufferSize = size;
             bufferOffset = 0;
+            lastRefillEnd = fileOffset + size;
         }
         return 0;
     }
 
+    /**
+     * Swaps in the buffer of the next completed read-ahead, returns -1 if none could be scheduled.
+     */
+    private long readFromReadAhead() throws IOException {
+        CubefsReadAhead.Fetch fetch = readAhead.next(fileOffset);
+        if (fetch == null) {
+            return -1;
+        }
+        bufferPool.returnBuffer(bf);
+        bf = fetch.take();
+        pbuf = Native.getDirectBufferPointer(bf);
+        ((Buffer) bf).clear();
+        return fetch.size();
+    }
+
     @Override
     public synchronized int read() throws IOException {
         checkNotClosed();
-        if (checkAndReadFromCfs() == -1) {
+        if (checkAndReadFromCfs(1) == -1) {
             return -1;
         }
         fileOffset += 1;
@@ -80,12 +174,29 @@ public class CubefsInputStream extends FSInputStream {
     }
 
 
+    /**
+     * Seeks to {@code pos}. A target that is still inside the buffer only moves the buffer position;
+     * anything else drops the buffer and counts towards switching the NORMAL policy to random reads.
+     */
     @Override
     public synchronized void seek(long pos) throws IOException {
         if (fileOffset == pos) {
             return;
         }
         checkNotClosed();
+        if (pos < 0) {
+            throw new EOFException("Cannot seek to negative offset " + pos);
+        }
+        long bufferStart = fileOffset - bufferOffset;
+        if (pos >= bufferStart && pos < bufferStart + bufferSize) {
+            bufferOffset = pos - bufferStart;
+            ((Buffer) bf).position((int) bufferOffset);
+            fileOffset = pos;
+            return;
+        }
+        if (inputPolicy == CubefsInputPolicy.NORMAL) {
+            randomSeeks++;
+        }
         fileOffset = pos;
         ((Buffer) bf).clear(); // 兼容java 1.8，clear需要转一下类型
         bufferOffset = 0;
@@ -106,7 +217,7 @@ public class CubefsInputStream extends FSInputStream {
     public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
         LOG.debug("read: fd=" + this.fd + " path=" + this.path + " offset=" + offset + " length=" + length);
         checkNotClosed();
-        if (checkAndReadFromCfs() == -1) {
+        if (checkAndReadFromCfs(length) == -1) {
             return -1;
         }
         int size = (int) (bufferSize - bufferOffset);
@@ -123,6 +234,275 @@ public class CubefsInputStream extends FSInputStream {
         return size;
     }
 
+    /**
+     * Reads into the given buffer. A direct buffer with at least a full read buffer of room is
+     * filled by cfs straight through its native address, skipping the pooled buffer and the copy
+     * out of it; smaller or heap buffers are served from the pooled buffer as usual.
+     */
+    @Override
+    public synchronized int read(ByteBuffer buf) throws IOException {
+        LOG.debug("read: fd=" + this.fd + " path=" + this.path + " remaining=" + buf.remaining());
+        checkNotClosed();
+        int length = buf.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        if (bufferOffset == bufferSize && buf.isDirect() && length >= bf.capacity()) {
+            Pointer dst = Native.getDirectBufferPointer(buf).share(buf.position());
+            long size = cfs.read(fd, dst, (long) length, fileOffset, path);
+            if (size == 0) {
+                return -1;
+            }
+            ((Buffer) buf).position(buf.position() + (int) size);
+            fileOffset += size;
+            // the pooled buffer no longer ends at the cursor, a seek must not land in it
+            ((Buffer) bf).limit(0);
+            bufferOffset = 0;
+            bufferSize = 0;
+            lastRefillEnd = fileOffset;
+            return (int) size;
+        }
+        if (checkAndReadFromCfs(length) == -1) {
+            return -1;
+        }
+        int size = (int) (bufferSize - bufferOffset);
+        if (size > length) {
+            size = length;
+        }
+        ByteBuffer src = bf.duplicate();
+        ((Buffer) src).limit(src.position() + size);
+        buf.put(src);
+        ((Buffer) bf).position(bf.position() + size);
+        fileOffset += size;
+        bufferOffset += size;
+        return size;
+    }
+
+    /**
+     * Positional read. It neither takes the stream lock nor touches the stream cursor or its
+     * buffer, so concurrent preads on a shared stream run in parallel, each through its own
+     * pooled native buffer. The fd stays open until the read is done, even if the stream is
+     * closed meanwhile.
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        checkPositionedReadArgs(position, buffer.length, offset, length);
+        acquireFd();
+        try {
+            return pread(position, buffer, offset, length);
+        } finally {
+            releaseFd();
+        }
+    }
+
+    private int pread(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        ByteBuffer tmp = bufferPool.getBuffer(bufferCapacity);
+        try {
+            Pointer p = Native.getDirectBufferPointer(tmp);
+            int n = 0;
+            while (n < length) {
+                int wanted = Math.min(length - n, bufferCapacity);
+                long size = readAt(position + n, p, wanted);
+                if (size == 0) {
+                    break;
+                }
+                ((Buffer) tmp).clear();
+                tmp.get(buffer, offset + n, (int) size);
+                n += size;
+                if (size < wanted) {
+                    break;
+                }
+            }
+            return n == 0 ? -1 : n;
+        } finally {
+            ((Buffer) tmp).clear();
+            bufferPool.returnBuffer(tmp);
+        }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int size = read(position + n, buffer, offset + n, length - n);
+            if (size < 0) {
+                throw new EOFException("End of file reached before reading fully, path=" + path);
+            }
+            n += size;
+        }
+    }
+
+    /**
+     * Positional read into a ByteBuffer, with the same concurrency guarantees as
+     * {@link #read(long, byte[], int, int)}. Direct buffers are filled in place.
+     */
+    public int read(long position, ByteBuffer buf) throws IOException {
+        checkNotClosed();
+        if (position < 0) {
+            throw new EOFException("Cannot read from negative position " + position);
+        }
+        acquireFd();
+        try {
+            return pread(position, buf);
+        } finally {
+            releaseFd();
+        }
+    }
+
+    private int pread(long position, ByteBuffer buf) throws IOException {
+        int length = buf.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        if (buf.isDirect()) {
+            Pointer dst = Native.getDirectBufferPointer(buf).share(buf.position());
+            long size = readAt(position, dst, length);
+            if (size == 0) {
+                return -1;
+            }
+            ((Buffer) buf).position(buf.position() + (int) size);
+            return (int) size;
+        }
+        if (buf.hasArray()) {
+            int size = pread(position, buf.array(), buf.arrayOffset() + buf.position(), length);
+            if (size > 0) {
+                ((Buffer) buf).position(buf.position() + size);
+            }
+            return size;
+        }
+        if (buf.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        ByteBuffer tmp = bufferPool.getBuffer(bufferCapacity);
+        try {
+            long size = readAt(position, Native.getDirectBufferPointer(tmp), Math.min(length, bufferCapacity));
+            if (size == 0) {
+                return -1;
+            }
+            ((Buffer) tmp).limit((int) size);
+            buf.put(tmp);
+            return (int) size;
+        } finally {
+            ((Buffer) tmp).clear();
+            bufferPool.returnBuffer(tmp);
+        }
+    }
+
+    public void readFully(long position, ByteBuffer buf) throws IOException {
+        checkNotClosed();
+        if (position < 0) {
+            throw new EOFException("Cannot read from negative position " + position);
+        }
+        acquireFd();
+        try {
+            preadFully(position, buf);
+        } finally {
+            releaseFd();
+        }
+    }
+
+    private void preadFully(long position, ByteBuffer buf) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int size = pread(pos, buf);
+            if (size < 0) {
+                throw new EOFException("End of file reached before reading fully, path=" + path);
+            }
+            pos += size;
+        }
+    }
+
+    /**
+     * Reads many ranges at once. Ranges closer than {@code cfs.vectored.read.min.seek.size} are
+     * merged into one request of at most {@code cfs.vectored.read.max.merged.size} bytes, and the
+     * merged requests run in parallel on the I/O pool. Each range's {@link CubefsFileRange#getData()}
+     * completes with a slice of the merged buffer obtained from {@code allocate}. The stream may be
+     * closed while reads are still in flight.
+     */
+    public void readVectored(List<? extends CubefsFileRange> ranges, final IntFunction<ByteBuffer> allocate) throws IOException {
+        checkNotClosed();
+        List<CubefsFileRange.Combined> combined = CubefsFileRange.merge(ranges, vectoredMinSeek, vectoredMaxMerged);
+        for (CubefsFileRange r : ranges) {
+            r.setData(new CompletableFuture<ByteBuffer>());
+        }
+        for (final CubefsFileRange.Combined c : combined) {
+            try {
+                acquireFd();
+            } catch (IOException e) {
+                c.fail(e);
+                continue;
+            }
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readCombined(c, allocate);
+                    } finally {
+                        releaseFd();
+                    }
+                }
+            };
+            if (ioPool == null) {
+                task.run();
+                continue;
+            }
+            try {
+                ioPool.execute(task);
+            } catch (RejectedExecutionException e) {
+                releaseFd();
+                c.fail(new IOException("vectored read rejected, path=" + path, e));
+            }
+        }
+    }
+
+    private void readCombined(CubefsFileRange.Combined c, IntFunction<ByteBuffer> allocate) {
+        try {
+            ByteBuffer buf = allocate.apply(c.length());
+            int start = buf.position();
+            preadFully(c.start, buf);
+            ((Buffer) buf).position(start);
+            c.complete(buf);
+        } catch (Throwable t) {
+            c.fail(t);
+        }
+    }
+
+    /**
+     * Keeps the fd open until the matching {@link #releaseFd()}, failing once it has been closed.
+     */
+    private void acquireFd() throws IOException {
+        int refs;
+        do {
+            refs = fdRefs.get();
+            if (refs == 0) {
+                throw new IOException("Stream is closed, path=" + path);
+            }
+        } while (!fdRefs.compareAndSet(refs, refs + 1));
+    }
+
+    private void releaseFd() {
+        if (fdRefs.decrementAndGet() == 0) {
+            cfs.close(fd);
+        }
+    }
+
+    private long readAt(long position, Pointer dst, int length) throws IOException {
+        return cfs.read(fd, dst, (long) length, position, path);
+    }
+
+    private void checkPositionedReadArgs(long position, int bufferLength, int offset, int length) throws IOException {
+        checkNotClosed();
+        if (position < 0) {
+            throw new EOFException("Cannot read from negative position " + position);
+        }
+        if (offset < 0 || length < 0 || length > bufferLength - offset) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " buffer=" + bufferLength);
+        }
+    }
+
     @Override
     public boolean markSupported() {
         return false;
@@ -141,9 +521,12 @@ public class CubefsInputStream extends FSInputStream {
             return;
         }
         super.close();
+        if (readAhead != null) {
+            readAhead.close();
+        }
         try {
-            cfs.close(fd);
             closed = true;
+            releaseFd();
         } catch (Exception e) {
             throw new IOException("close failed, fd = " + fd);
         } finally {
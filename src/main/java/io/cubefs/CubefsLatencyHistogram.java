@@ -0,0 +1,202 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latencies of one native call in microseconds, counted in buckets that split every power of two
+ * in four, so a percentile is off by at most a quarter of its value. Recording only increments
+ * atomics and never blocks. Latencies are counted per window of a fixed interval: the first call
+ * of a new interval rolls the windows over, whether or not the histogram is read. A
+ * {@link #snapshot()} covers the last complete window and resets nothing, so any number of readers
+ * can take one and all see the same figures. The call and error counts are cumulative.
+ */
+class CubefsLatencyHistogram {
+    // 4 exact buckets for 0-3 us, then 4 per power of two up to 2^40 us
+    static final int BUCKETS = 160;
+
+    private final long intervalNanos;
+    private final AtomicReference<Windows> windows;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Latencies of the calls of one interval, {@code epoch} being its start in intervals.
+     */
+    private static final class Window {
+        final long epoch;
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        // largest latency recorded
+        final AtomicLong max = new AtomicLong();
+
+        Window(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * The window being recorded and the one before it, swapped together on a roll over.
+     */
+    private static final class Windows {
+        final Window current;
+        final Window previous;
+
+        Windows(Window current, Window previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Latencies of the calls recorded in a window.
+     */
+    static final class Snapshot {
+        final long count;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long max;
+
+        Snapshot(long count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+
+    /**
+     * @param intervalSecs length of a window
+     */
+    CubefsLatencyHistogram(long intervalSecs) {
+        if (intervalSecs <= 0) {
+            throw new IllegalArgumentException("Invalid metrics interval " + intervalSecs);
+        }
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSecs);
+        // rolled over by the first call
+        this.windows = new AtomicReference<>(new Windows(new Window(Long.MIN_VALUE), null));
+    }
+
+    static int bucket(long micros) {
+        if (micros < 4) {
+            return (int) Math.max(micros, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int index = (exp - 1) * 4 + (int) ((micros >>> (exp - 2)) & 3);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Largest latency counted in bucket {@code index}.
+     */
+    static long upperBound(int index) {
+        if (index < 4) {
+            return index;
+        }
+        int exp = index / 4 + 1;
+        long lower = (4L + index % 4) << (exp - 2);
+        return lower + (1L << (exp - 2)) - 1;
+    }
+
+    private long epoch(long nanos) {
+        return Math.floorDiv(nanos, intervalNanos);
+    }
+
+    /**
+     * Returns the windows as of {@code epoch}, rolling them over if it is a later interval.
+     */
+    private Windows roll(long epoch) {
+        Windows w = windows.get();
+        while (w.current.epoch < epoch) {
+            Windows next = new Windows(new Window(epoch), w.current);
+            if (windows.compareAndSet(w, next)) {
+                return next;
+            }
+            w = windows.get();
+        }
+        return w;
+    }
+
+    void record(long micros, boolean failed) {
+        record(micros, failed, System.nanoTime());
+    }
+
+    void record(long micros, boolean failed, long nowNanos) {
+        Window w = roll(epoch(nowNanos)).current;
+        w.buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        long m = w.max.get();
+        while (micros > m && !w.max.compareAndSet(m, micros)) {
+            m = w.max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    Snapshot snapshot() {
+        return snapshot(System.nanoTime());
+    }
+
+    /**
+     * Returns the percentiles of the calls recorded in the last complete window, each the upper
+     * bound of its bucket capped at the largest latency of the window. Empty if no call was
+     * recorded in the previous interval.
+     */
+    Snapshot snapshot(long nowNanos) {
+        long epoch = epoch(nowNanos);
+        Window last = roll(epoch).previous;
+        if (last == null || last.epoch != epoch - 1) {
+            return new Snapshot(0, 0, 0, 0, 0);
+        }
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = last.buckets.get(i);
+            n += counts[i];
+        }
+        long m = last.max.get();
+        if (n == 0) {
+            return new Snapshot(0, 0, 0, 0, 0);
+        }
+        return new Snapshot(n, percentile(counts, n, 0.50, m), percentile(counts, n, 0.90, m),
+                percentile(counts, n, 0.99, m), m);
+    }
+
+    private static long percentile(long[] counts, long n, double quantile, long max) {
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+}
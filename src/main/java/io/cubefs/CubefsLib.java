@@ -18,6 +18,7 @@ import com.sun.jna.Library;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
@@ -43,6 +44,10 @@ public interface CubefsLib extends Library {
             super();
         }
 
+        public StatInfo(Pointer p) {
+            super(p);
+        }
+
         ;
 
         @Override
@@ -98,6 +103,10 @@ public interface CubefsLib extends Library {
             super();
         }
 
+        public Dirent(Pointer p) {
+            super(p);
+        }
+
         ;
 
         @Override
@@ -113,6 +122,36 @@ public interface CubefsLib extends Library {
 
     }
 
+    class ExtentLocation extends Structure {
+        // note that the field layout should be aligned with cfs_extent_location
+        public long fileOffset;
+        public long size;
+        public long partitionId;
+        // comma separated host:port of the data nodes holding the partition, nul terminated
+        public byte[] hosts = new byte[256];
+
+        public ExtentLocation() {
+            super();
+        }
+
+        public ExtentLocation(Pointer p) {
+            super(p);
+        }
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList(new String[]{"fileOffset", "size", "partitionId", "hosts"});
+        }
+
+        public String getHosts() {
+            int len = 0;
+            while (len < hosts.length && hosts[len] != 0) {
+                len++;
+            }
+            return new String(hosts, 0, len, StandardCharsets.UTF_8);
+        }
+    }
+
     class DirentArray extends Structure {
         public static class ByValue extends DirentArray implements Structure.ByValue {
         }
@@ -166,7 +205,11 @@ public interface CubefsLib extends Library {
 
     int cfs_unlink(long cid, String path);
 
-    int cfs_rename(long cid, String from, String to);
+    /**
+     * Renames {@code from} to {@code to}. Unless {@code overwritten} is set, an existing {@code to} is
+     * left in place and the call fails with EEXIST, in the same meta node request as the rename.
+     */
+    int cfs_rename(long cid, String from, String to, boolean overwritten);
 
     int cfs_readdir(long id, int fd, DirentArray.ByValue dents, long count);
 
@@ -176,5 +219,11 @@ public interface CubefsLib extends Library {
 
     int cfs_batch_get_inodes(long cid, int fd, long[] iids, DirentArray.ByValue stats, int count);
 
+    /**
+     * Fills {@code locs} with the extents of {@code path} overlapping {@code [offset, offset + len)},
+     * in file order, and returns how many were written or a negative errno.
+     */
+    int cfs_get_extent_locations(long cid, String path, long offset, long len, DirentArray.ByValue locs, int count);
+
 
 }
@@ -0,0 +1,99 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+
+package io.cubefs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open listings of a file system. Each listing is tracked by a phantom reference to the
+ * iterator handed to the caller, together with the resource holding its fd, which must not refer
+ * back to the iterator. A listing dropped by its caller without being exhausted or closed is
+ * reclaimed once the iterator is garbage collected, when the next listing is tracked; the rest are
+ * closed with the file system.
+ */
+class CubefsListingTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    // keeps the references themselves reachable until their listing is closed
+    private final Set<Listing> open = Collections.newSetFromMap(new ConcurrentHashMap<Listing, Boolean>());
+
+    /**
+     * Tracks {@code resource} until it is closed through the returned handle, {@code iterator} is
+     * collected, or the file system is closed. Reclaims the listings collected so far.
+     */
+    Closeable track(Object iterator, Closeable resource) {
+        reclaim();
+        Listing listing = new Listing(iterator, resource, collected);
+        open.add(listing);
+        return listing;
+    }
+
+    /**
+     * Closes the listings whose iterator was collected.
+     */
+    void reclaim() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            LOG.debug("Closing a listing that was not closed by its caller");
+            closeQuietly((Listing) ref);
+        }
+    }
+
+    /**
+     * Closes every listing still open.
+     */
+    void closeAll() {
+        for (Listing listing : open.toArray(new Listing[0])) {
+            closeQuietly(listing);
+        }
+    }
+
+    private static void closeQuietly(Listing listing) {
+        try {
+            listing.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close a listing: " + e);
+        }
+    }
+
+    private final class Listing extends PhantomReference<Object> implements Closeable {
+        private final Closeable resource;
+
+        Listing(Object iterator, Closeable resource, ReferenceQueue<Object> queue) {
+            super(iterator, queue);
+            this.resource = resource;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open.remove(this)) {
+                clear();
+                resource.close();
+            }
+        }
+    }
+}
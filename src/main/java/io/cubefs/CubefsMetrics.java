@@ -0,0 +1,206 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics2 source for the native clients of a {@link CubefsClientPool}: for each libcfs call the
+ * number of calls, the calls that failed and the 50th, 90th and 99th percentile and maximum
+ * latency in microseconds, plus the bytes read and written and the use of the stream buffer pool.
+ * The latencies cover the last complete interval of {@link CubefsConfigs#CFS_METRICS_INTERVAL_SECS},
+ * so they follow a slowdown; the other values are cumulative since the source was registered.
+ * Nothing is recorded before, and reading the source resets nothing.
+ */
+class CubefsMetrics implements MetricsSource {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    static final int OPEN = 0;
+    static final int READ = 1;
+    static final int WRITE = 2;
+    static final int FLUSH = 3;
+    static final int GETATTR = 4;
+    static final int READDIR = 5;
+    static final int BATCH_GET_INODES = 6;
+    static final int RENAME = 7;
+    static final int UNLINK = 8;
+    static final int MKDIRS = 9;
+    static final int RMDIR = 10;
+
+    private static final String[] OPS = {"Open", "Read", "Write", "Flush", "Getattr", "Readdir",
+            "BatchGetInodes", "Rename", "Unlink", "Mkdirs", "Rmdir"};
+    private static final String[] CALLS = {"cfs_open", "cfs_read", "cfs_write", "cfs_flush", "cfs_getattr",
+            "cfs_readdir", "cfs_batch_get_inodes", "cfs_rename", "cfs_unlink", "cfs_mkdirs", "cfs_rmdir"};
+
+    private static final String RECORD = "CubefsClient";
+    private static final String CONTEXT = "cubefs";
+    private static final MetricsInfo VOLUME = Interns.info("Volume", "CubeFS volume");
+    private static final MetricsInfo BYTES_READ = Interns.info("BytesRead", "Bytes read by cfs_read");
+    private static final MetricsInfo BYTES_WRITTEN = Interns.info("BytesWritten", "Bytes written by cfs_write");
+    private static final MetricsInfo BUFFER_GETS = Interns.info("BufferPoolGets",
+            "Direct buffers taken from the process-wide stream buffer pool");
+    private static final MetricsInfo BUFFERS_IN_USE = Interns.info("BufferPoolBuffersInUse",
+            "Direct buffers of the process-wide stream buffer pool held by streams");
+    private static final MetricsInfo BUFFER_BYTES_IN_USE = Interns.info("BufferPoolBytesInUse",
+            "Bytes of the direct buffers held by streams");
+    private static final String LAST_INTERVAL = " in the last interval";
+    // ops, errors, p50, p90, p99, max per call
+    private static final MetricsInfo[][] OP_INFOS = new MetricsInfo[OPS.length][];
+
+    static {
+        for (int i = 0; i < OPS.length; i++) {
+            String op = OPS[i];
+            String call = CALLS[i];
+            OP_INFOS[i] = new MetricsInfo[]{
+                    Interns.info(op + "Ops", "Calls to " + call),
+                    Interns.info(op + "Errors", "Calls to " + call + " that failed"),
+                    Interns.info(op + "Latency50thPercentileMicros", "Median latency of " + call + LAST_INTERVAL),
+                    Interns.info(op + "Latency90thPercentileMicros", "90th percentile latency of " + call + LAST_INTERVAL),
+                    Interns.info(op + "Latency99thPercentileMicros", "99th percentile latency of " + call + LAST_INTERVAL),
+                    Interns.info(op + "LatencyMaxMicros", "Maximum latency of " + call + LAST_INTERVAL)};
+        }
+    }
+
+    // sources registered by this process, to keep their names unique
+    private static final AtomicInteger sources = new AtomicInteger();
+
+    private final String volumeName;
+    private final CubefsLatencyHistogram[] latencies = new CubefsLatencyHistogram[OPS.length];
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    // set once registered, calls are not recorded before
+    private volatile boolean enabled;
+    // guarded by this
+    private CubefsBufferPool bufferPool;
+    private String sourceName;
+
+    /**
+     * @param intervalSecs length of the interval covered by the latencies
+     */
+    CubefsMetrics(String volumeName, long intervalSecs) {
+        this.volumeName = volumeName;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new CubefsLatencyHistogram(intervalSecs);
+        }
+    }
+
+    /**
+     * Records a call of {@code op} that started at {@code startNanos}, see {@link System#nanoTime()}.
+     * A call fails when libcfs returns an errno other than ENOENT, which only answers a lookup.
+     */
+    void record(int op, long startNanos, long result) {
+        if (!enabled) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        latencies[op].record(micros, result < 0 && result != CubefsMount.ENOENT);
+    }
+
+    void addBytesRead(long bytes) {
+        if (enabled) {
+            bytesRead.addAndGet(bytes);
+        }
+    }
+
+    void addBytesWritten(long bytes) {
+        if (enabled) {
+            bytesWritten.addAndGet(bytes);
+        }
+    }
+
+    long getCount(int op) {
+        return latencies[op].getCount();
+    }
+
+    long getErrors(int op) {
+        return latencies[op].getErrors();
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Registers this source with the default metrics system, once, also publishing the use of
+     * {@code buffers}. Returns the name of the source.
+     */
+    synchronized String register(CubefsBufferPool buffers) {
+        if (sourceName == null) {
+            bufferPool = buffers;
+            String name = RECORD + "-" + volumeName + "-" + sources.incrementAndGet();
+            DefaultMetricsSystem.instance().register(name, "CubeFS native client calls of volume " + volumeName, this);
+            sourceName = name;
+            enabled = true;
+            LOG.debug("Registered metrics source " + name);
+        }
+        return sourceName;
+    }
+
+    /**
+     * Name of the registered source, null if it is not registered.
+     */
+    synchronized String getSourceName() {
+        return sourceName;
+    }
+
+    synchronized void unregister() {
+        if (sourceName != null) {
+            DefaultMetricsSystem.instance().unregisterSource(sourceName);
+            sourceName = null;
+            enabled = false;
+        }
+    }
+
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+        MetricsRecordBuilder rb = collector.addRecord(RECORD).setContext(CONTEXT).tag(VOLUME, volumeName);
+        for (int i = 0; i < latencies.length; i++) {
+            CubefsLatencyHistogram h = latencies[i];
+            CubefsLatencyHistogram.Snapshot s = h.snapshot();
+            MetricsInfo[] infos = OP_INFOS[i];
+            rb.addCounter(infos[0], h.getCount())
+                    .addCounter(infos[1], h.getErrors())
+                    .addGauge(infos[2], s.p50)
+                    .addGauge(infos[3], s.p90)
+                    .addGauge(infos[4], s.p99)
+                    .addGauge(infos[5], s.max);
+        }
+        rb.addCounter(BYTES_READ, bytesRead.get()).addCounter(BYTES_WRITTEN, bytesWritten.get());
+        CubefsBufferPool buffers;
+        synchronized (this) {
+            buffers = bufferPool;
+        }
+        if (buffers != null) {
+            rb.addCounter(BUFFER_GETS, buffers.getGets())
+                    .addGauge(BUFFERS_IN_USE, buffers.getBuffersInUse())
+                    .addGauge(BUFFER_BYTES_IN_USE, buffers.getBytesInUse());
+        }
+    }
+}
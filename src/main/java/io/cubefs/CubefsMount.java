@@ -14,15 +14,24 @@
 
 package io.cubefs;
 
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class CubefsMount {
@@ -60,17 +69,84 @@ public class CubefsMount {
     public final static int EINVAL = -0x16;
     public final static int ENOSPACE = -0x1c;
     public final static int EROFS = -0x1e;
+    public final static int ENOTEMPTY = -0x27;
 
 
+    // extent locations fetched per cfs_get_extent_locations call
+    final static int EXTENT_BATCH = 64;
+
+    public final static String LIBRARY_NAME = "libcfs.so";
+    public final static String BINDING_PROXY = "proxy";
+    public final static String BINDING_DIRECT = "direct";
+
     private CubefsLib libcfs;
     private long cid;
     private static final Logger LOGGER = LoggerFactory.getLogger(CubefsFileSystem.class);
+    private static CubefsLib proxyLib;
+    private static CubefsLib directLib;
+    private static final ThreadLocal<NativePage> nativePages = new ThreadLocal<>();
+    // native calls that go to the meta nodes
+    private final AtomicLong metadataOps = new AtomicLong();
+    private volatile boolean extentLocationsSupported = true;
+    // fds opened and not closed yet
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final CubefsMetrics metrics;
 
     public CubefsMount() {
-        libcfs = (CubefsLib) Native.load("libcfs.so", CubefsLib.class);
+        this(loadLibrary(BINDING_PROXY));
+    }
+
+    public CubefsMount(CubefsLib libcfs) {
+        this(libcfs, new CubefsMetrics(null, CubefsConfigs.CFS_METRICS_INTERVAL_SECS_DEFAULT));
+    }
+
+    /**
+     * @param metrics where the calls of this client are recorded, may be shared with other clients
+     */
+    CubefsMount(CubefsLib libcfs, CubefsMetrics metrics) {
+        this.libcfs = libcfs;
+        this.metrics = metrics;
         cid = libcfs.cfs_new_client();
     }
 
+    /**
+     * Returns the libcfs implementation configured by {@link CubefsConfigs#CFS_NATIVE_LIB_IMPL}, a new
+     * instance per call, or else the binding selected by {@link CubefsConfigs#CFS_NATIVE_BINDING}.
+     */
+    public static CubefsLib loadLibrary(Configuration conf) {
+        Class<? extends CubefsLib> impl = conf.getClass(CubefsConfigs.CFS_NATIVE_LIB_IMPL, null, CubefsLib.class);
+        if (impl != null) {
+            return ReflectionUtils.newInstance(impl, conf);
+        }
+        return loadLibrary(conf.get(CubefsConfigs.CFS_NATIVE_BINDING, CubefsConfigs.CFS_NATIVE_BINDING_DEFAULT));
+    }
+
+    /**
+     * Returns the process-wide binding of libcfs. {@link #BINDING_DIRECT} uses JNA direct mapping
+     * for the hot calls and falls back to the {@link #BINDING_PROXY} interface proxy if the library
+     * cannot be bound that way.
+     */
+    public static synchronized CubefsLib loadLibrary(String binding) {
+        if (proxyLib == null) {
+            proxyLib = (CubefsLib) Native.load(LIBRARY_NAME, CubefsLib.class);
+        }
+        if (!BINDING_DIRECT.equalsIgnoreCase(binding)) {
+            if (!BINDING_PROXY.equalsIgnoreCase(binding)) {
+                LOGGER.warn("Unknown native binding " + binding + ", using " + BINDING_PROXY);
+            }
+            return proxyLib;
+        }
+        if (directLib == null) {
+            try {
+                directLib = new CubefsDirectLib(proxyLib);
+            } catch (LinkageError e) {
+                LOGGER.warn("Direct binding of " + LIBRARY_NAME + " failed, using " + BINDING_PROXY, e);
+                directLib = proxyLib;
+            }
+        }
+        return directLib;
+    }
+
     public int setClient(String key, String val) throws IOException {
         int r = libcfs.cfs_set_client(this.cid, key, val);
         if (r < 0) {
@@ -93,6 +169,8 @@ public class CubefsMount {
             return new InvalidRequestException("Invalid parameter");
         } else if (errno == ENOSPACE) {
             return new IOException("No space");
+        } else if (errno == ENOTEMPTY) {
+            return new PathIsNotEmptyDirectoryException(p);
         } else if (errno == EROFS) {
             return new IOException("Read-only Filesystem");
         } else if (errno == EIO) {
@@ -112,6 +190,7 @@ public class CubefsMount {
     }
 
     public int chdir(String path) throws IOException {
+        metadataOps.incrementAndGet();
         int r = libcfs.cfs_chdir(this.cid, path);
         if (r < 0) {
             throw error(r, path);
@@ -124,7 +203,10 @@ public class CubefsMount {
     }
 
     public int getAttr(String path, CubefsLib.StatInfo stat) throws IOException {
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         int r = libcfs.cfs_getattr(this.cid, path, stat);
+        metrics.record(CubefsMetrics.GETATTR, t, r);
         if (r < 0) {
             throw error(r, path);
         }
@@ -132,6 +214,7 @@ public class CubefsMount {
     }
 
     public int setAttr(String path, CubefsLib.StatInfo stat, int mask) throws IOException {
+        metadataOps.incrementAndGet();
         int r = libcfs.cfs_setattr(this.cid, path, stat, mask);
         if (r < 0) {
             throw error(r, path);
@@ -140,7 +223,13 @@ public class CubefsMount {
     }
 
     public int open(String path, int flags, int mode) throws IOException {
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         int r = libcfs.cfs_open(this.cid, path, flags, mode, 0, 0);
+        metrics.record(CubefsMetrics.OPEN, t, r);
+        if (r >= 0) {
+            openFiles.incrementAndGet();
+        }
 //        if (r < 0) {
 //            throw error(r, path);
 //        }
@@ -149,32 +238,59 @@ public class CubefsMount {
 
     public void close(int fd) {
         libcfs.cfs_close(this.cid, fd);
+        openFiles.decrementAndGet();
     }
 
     public long write(int fd, Pointer buf, long size, long offset) {
-        return libcfs.cfs_write(this.cid, fd, buf, size, offset);
-
+        long t = System.nanoTime();
+        long r = libcfs.cfs_write(this.cid, fd, buf, size, offset);
+        written(t, r);
+        return r;
     }
 
     public long write(int fd, byte[] buf, long size, long offset) {
-        return libcfs.cfs_write(this.cid, fd, buf, size, offset);
+        long t = System.nanoTime();
+        long r = libcfs.cfs_write(this.cid, fd, buf, size, offset);
+        written(t, r);
+        return r;
+    }
 
+    private void written(long start, long r) {
+        metrics.record(CubefsMetrics.WRITE, start, r);
+        if (r > 0) {
+            metrics.addBytesWritten(r);
+        }
     }
 
     public int flush(int fd) {
-        return libcfs.cfs_flush(this.cid, fd);
+        long t = System.nanoTime();
+        int r = libcfs.cfs_flush(this.cid, fd);
+        metrics.record(CubefsMetrics.FLUSH, t, r);
+        return r;
     }
 
     public long read(int fd, Pointer buf, long size, long offset, String path) throws IOException {
+        long t = System.nanoTime();
         long r = libcfs.cfs_read(this.cid, fd, buf, size, offset);
+        metrics.record(CubefsMetrics.READ, t, r);
+        if (r > 0) {
+            metrics.addBytesRead(r);
+        }
         if (r < 0) {
             throw error((int) r, path);
         }
         return r;
     }
 
+    /**
+     * Renames {@code from} to {@code to} without replacing an existing {@code to}, returns 0 or a
+     * negative errno, EEXIST if {@code to} exists.
+     */
     public int rename(String from, String to) throws IOException {
-        int r = libcfs.cfs_rename(this.cid, from, to);
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
+        int r = libcfs.cfs_rename(this.cid, from, to, false);
+        metrics.record(CubefsMetrics.RENAME, t, r);
         return r;
     }
 
@@ -189,7 +305,10 @@ public class CubefsMount {
         slice.len = (long) count;
         slice.cap = (long) count;
 
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         long arrSize = libcfs.cfs_readdir(this.cid, fd, slice, count);
+        metrics.record(CubefsMetrics.READDIR, t, arrSize);
         if (arrSize > 0) {
             for (int i = 0; i < (int) arrSize; i++) {
                 dents[i].read();
@@ -199,18 +318,90 @@ public class CubefsMount {
         return (int) arrSize;
     }
 
+    /**
+     * Native arrays for one readdir page and its batch stat, reused by the calling thread.
+     */
+    private static final class NativePage {
+        final int capacity;
+        final Memory dirents;
+        final Memory stats;
+        final ByteBuffer direntView;
+        final ByteBuffer statView;
+        final CubefsLib.DirentArray.ByValue slice = new CubefsLib.DirentArray.ByValue();
+
+        NativePage(int capacity) {
+            this.capacity = capacity;
+            this.dirents = new Memory((long) capacity * CubefsDirPage.DIRENT_SIZE);
+            this.stats = new Memory((long) capacity * CubefsDirPage.STAT_SIZE);
+            this.direntView = dirents.getByteBuffer(0, dirents.size()).order(ByteOrder.nativeOrder());
+            this.statView = stats.getByteBuffer(0, stats.size()).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static NativePage nativePage(int capacity) {
+        NativePage p = nativePages.get();
+        if (p == null || p.capacity < capacity) {
+            p = new NativePage(capacity);
+            nativePages.set(p);
+        }
+        return p;
+    }
+
+    /**
+     * Reads the next entries of the directory {@code fd} together with their attributes into
+     * {@code page}, through native buffers kept per thread. Returns the number of entries returned
+     * by readdir, 0 at the end of the directory.
+     */
+    public int readdirPlus(int fd, CubefsDirPage page, String path) throws IOException {
+        int cap = page.capacity();
+        NativePage np = nativePage(cap);
+        np.slice.data = np.dirents;
+        np.slice.len = cap;
+        np.slice.cap = cap;
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
+        int count = libcfs.cfs_readdir(this.cid, fd, np.slice, cap);
+        metrics.record(CubefsMetrics.READDIR, t, count);
+        if (count < 0) {
+            throw new IOException(String.format("readdir fail for %s,code=%s", path, count));
+        }
+        if (count == 0) {
+            return 0;
+        }
+        page.decodeDirents(np.direntView, count);
+        np.slice.data = np.stats;
+        np.slice.len = count;
+        np.slice.cap = count;
+        metadataOps.incrementAndGet();
+        t = System.nanoTime();
+        int num = libcfs.cfs_batch_get_inodes(this.cid, fd, page.inos, np.slice, count);
+        metrics.record(CubefsMetrics.BATCH_GET_INODES, t, num);
+        if (num < 0) {
+            throw new IOException(String.format("cfs_batch_get_inodes fail for %s,code=%s", path, num));
+        }
+        page.decodeStats(np.statView, Math.min(num, count));
+        return count;
+    }
+
     public int fchmod(int fd, int mode) throws IOException {
+        metadataOps.incrementAndGet();
         return libcfs.cfs_fchmod(this.cid, fd, mode);
 
     }
 
     public int unlink(String path) throws IOException {
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         int r = libcfs.cfs_unlink(cid, path);
+        metrics.record(CubefsMetrics.UNLINK, t, r);
         return r;
     }
 
     public int rmdir(String path, boolean recursive) throws IOException {
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         int r = libcfs.cfs_rmdir(cid, path, recursive);
+        metrics.record(CubefsMetrics.RMDIR, t, r);
         if (r < 0) {
             throw error(r, path);
         }
@@ -218,15 +409,81 @@ public class CubefsMount {
     }
 
     public int cfs_batch_get_inodes(int fd, long[] inodes, CubefsLib.DirentArray.ByValue direntArray, int count) {
-        return libcfs.cfs_batch_get_inodes(cid, fd, inodes, direntArray, count);
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
+        int r = libcfs.cfs_batch_get_inodes(cid, fd, inodes, direntArray, count);
+        metrics.record(CubefsMetrics.BATCH_GET_INODES, t, r);
+        return r;
+    }
+
+    /**
+     * Returns the extents of {@code path} overlapping {@code [offset, offset + len)} in file order,
+     * or null if libcfs does not provide cfs_get_extent_locations.
+     */
+    public List<CubefsLib.ExtentLocation> getExtentLocations(String path, long offset, long len) throws IOException {
+        if (!extentLocationsSupported) {
+            return null;
+        }
+        List<CubefsLib.ExtentLocation> result = new ArrayList<>();
+        long end = offset + len;
+        while (offset < end) {
+            CubefsLib.ExtentLocation[] locs = (CubefsLib.ExtentLocation[]) new CubefsLib.ExtentLocation().toArray(EXTENT_BATCH);
+            CubefsLib.DirentArray.ByValue slice = new CubefsLib.DirentArray.ByValue();
+            slice.data = locs[0].getPointer();
+            slice.len = EXTENT_BATCH;
+            slice.cap = EXTENT_BATCH;
+            int r;
+            try {
+                r = libcfs.cfs_get_extent_locations(cid, path, offset, end - offset, slice, EXTENT_BATCH);
+            } catch (UnsatisfiedLinkError e) {
+                LOGGER.info("libcfs has no cfs_get_extent_locations, block locations are synthetic: " + e);
+                extentLocationsSupported = false;
+                return null;
+            }
+            metadataOps.incrementAndGet();
+            if (r < 0) {
+                throw error(r, path);
+            }
+            for (int i = 0; i < r; i++) {
+                locs[i].read();
+                result.add(locs[i]);
+            }
+            if (r < EXTENT_BATCH) {
+                break;
+            }
+            CubefsLib.ExtentLocation last = locs[r - 1];
+            offset = Math.max(offset + 1, last.fileOffset + last.size);
+        }
+        return result;
     }
 
     public int mkdirs(String path, int mode) throws IOException {
+        metadataOps.incrementAndGet();
+        long t = System.nanoTime();
         int r = libcfs.cfs_mkdirs(cid, path, mode);
+        metrics.record(CubefsMetrics.MKDIRS, t, r);
         if (r < 0) {
             throw error(r, path);
         }
         return r;
     }
-}
 
+    /**
+     * Number of native calls made to the meta nodes by this client: lookups, opens, namespace
+     * changes, readdir and batch stat.
+     */
+    public long getMetadataOps() {
+        return metadataOps.get();
+    }
+
+    /**
+     * Number of files and directories opened through this client and not closed yet.
+     */
+    public int getOpenFiles() {
+        return openFiles.get();
+    }
+
+    CubefsMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -15,15 +15,22 @@
 package io.cubefs;
 
 
+import com.sun.jna.Native;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.util.DirectBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 public class CubefsOutputStream extends OutputStream implements Syncable {
     private boolean closed;
@@ -32,6 +39,20 @@ public class CubefsOutputStream extends OutputStream implements Syncable {
     private ByteBuffer bf;
     private long offset = 0;
     private FileSystem.Statistics statistics;
+    private int bufferSize;
+    private DirectBufferPool bufferPool;
+    private ExecutorService writePool;
+    // buffers allowed in the background besides the one being filled
+    private int asyncBuffers;
+    private long parallelThreshold;
+    private int parallelParts;
+    private int allocatedBuffers;
+    private final LinkedBlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<>();
+    private final Object writeLock = new Object();
+    private final ArrayDeque<Runnable> orderedWrites = new ArrayDeque<>();
+    private boolean orderedWriteRunning;
+    private int pendingWrites;
+    private volatile IOException writeError;
     private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
 
     public CubefsOutputStream() {
@@ -39,17 +60,36 @@ public class CubefsOutputStream extends OutputStream implements Syncable {
     }
 
     public CubefsOutputStream(CubefsMount cfs, FileSystem.Statistics statistics, int fd, long offset, int bufferSize) {
+        this(cfs, statistics, new DirectBufferPool(), fd, offset, bufferSize, null, CubefsWriteOptions.DEFAULT);
+    }
+
+    /**
+     * @param bufferPool pool of the direct buffers handed to cfs_write
+     * @param ioPool     executor for write-behind, or null to write every buffer in the caller
+     */
+    CubefsOutputStream(CubefsMount cfs, FileSystem.Statistics statistics, DirectBufferPool bufferPool, int fd, long offset,
+                       int bufferSize, ExecutorService ioPool, CubefsWriteOptions options) {
         this.cfs = cfs;
         this.fileHandle = fd;
         this.statistics = statistics;
-        this.bf = ByteBuffer.allocate(bufferSize);
+        this.bufferSize = bufferSize;
+        this.bufferPool = bufferPool;
+        this.bf = newBuffer();
+        this.allocatedBuffers = 1;
         this.offset = offset;
+        if (ioPool != null && (options.asyncBuffers > 0 || options.parallelParts > 0)) {
+            this.writePool = ioPool;
+            this.asyncBuffers = options.asyncBuffers;
+            this.parallelThreshold = options.parallelThreshold;
+            this.parallelParts = options.parallelParts;
+        }
     }
 
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
         LOG.debug("flush,fd = " + fileHandle);
         cfsWrite();
+        waitForWrites();
         int result = cfs.flush(fileHandle);
         if (result != 0) {
             throw new IOException("flush failed: " + result);
@@ -60,17 +100,168 @@ public class CubefsOutputStream extends OutputStream implements Syncable {
         if (bf.position() == 0) {
             return;
         }
-        long size = cfs.write(fileHandle, bf.array(), bf.position(), offset);
+        boolean parallel = isParallel();
+        if (writePool == null || (asyncBuffers == 0 && !parallel)) {
+            writeBuffer(bf, bf.position(), offset);
+            offset += bf.position();
+            ((Buffer) bf).clear();
+            return;
+        }
+        checkWriteError();
+        ByteBuffer full = bf;
+        int len = full.position();
+        bf = nextBuffer(parallel ? Math.max(parallelParts, asyncBuffers) : asyncBuffers);
+        submitWrite(full, len, offset, !parallel);
+        offset += len;
+    }
+
+    /**
+     * Past {@code cfs.write.parallel.threshold} bytes, buffers are written concurrently at their own
+     * offsets instead of one after the other.
+     */
+    private boolean isParallel() {
+        return parallelParts > 0 && offset >= parallelThreshold;
+    }
+
+    private ByteBuffer newBuffer() {
+        ByteBuffer b = bufferPool.getBuffer(bufferSize);
+        ((Buffer) b).clear();
+        return b;
+    }
+
+    private void writeBuffer(ByteBuffer buf, int len, long off) throws IOException {
+        long size = cfs.write(fileHandle, Native.getDirectBufferPointer(buf), len, off);
         statistics.incrementBytesWritten(size);
-        if (size != bf.position()) {
+        if (size != len) {
             throw new IOException("write failed:" + size);
         }
-        offset += bf.position();
-        ((Buffer) bf).clear();
+    }
+
+    /**
+     * Returns an empty buffer, blocking while {@code inFlight} buffers are being written.
+     */
+    private ByteBuffer nextBuffer(int inFlight) throws IOException {
+        ByteBuffer b = freeBuffers.poll();
+        if (b != null) {
+            return b;
+        }
+        if (allocatedBuffers <= inFlight) {
+            allocatedBuffers++;
+            return newBuffer();
+        }
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a write buffer, fd = " + fileHandle);
+        }
+    }
+
+    /**
+     * Hands a full buffer to the background writer. Ordered buffers are written one at a time in the
+     * order they were submitted, the others as soon as a thread of the pool is free. The first
+     * failure is kept and reported by the next write, flush or close.
+     */
+    private void submitWrite(final ByteBuffer buf, final int len, final long off, boolean ordered) throws IOException {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (writeError == null) {
+                        writeBuffer(buf, len, off);
+                    }
+                } catch (IOException e) {
+                    writeFailed(e);
+                } catch (RuntimeException e) {
+                    writeFailed(new IOException("write failed, fd = " + fileHandle, e));
+                } finally {
+                    ((Buffer) buf).clear();
+                    freeBuffers.offer(buf);
+                    synchronized (writeLock) {
+                        pendingWrites--;
+                        writeLock.notifyAll();
+                    }
+                }
+            }
+        };
+        synchronized (writeLock) {
+            pendingWrites++;
+            if (ordered) {
+                orderedWrites.addLast(task);
+                if (orderedWriteRunning) {
+                    return;
+                }
+                orderedWriteRunning = true;
+            }
+        }
+        try {
+            writePool.execute(ordered ? orderedWriter : task);
+        } catch (RejectedExecutionException e) {
+            synchronized (writeLock) {
+                if (ordered) {
+                    orderedWriteRunning = false;
+                    orderedWrites.remove(task);
+                }
+                pendingWrites--;
+            }
+            ((Buffer) buf).clear();
+            freeBuffers.offer(buf);
+            throw new IOException("write rejected, fd = " + fileHandle, e);
+        }
+    }
+
+    private final Runnable orderedWriter = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (writeLock) {
+                    next = orderedWrites.pollFirst();
+                    if (next == null) {
+                        orderedWriteRunning = false;
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }
+    };
+
+    private void writeFailed(IOException e) {
+        synchronized (writeLock) {
+            if (writeError == null) {
+                writeError = e;
+            }
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        IOException e = writeError;
+        if (e != null) {
+            throw new IOException("background write failed, fd = " + fileHandle, e);
+        }
+    }
+
+    /**
+     * Waits until every submitted buffer is written and reports the first failure, if any.
+     */
+    private void waitForWrites() throws IOException {
+        synchronized (writeLock) {
+            try {
+                while (pendingWrites > 0) {
+                    writeLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for writes, fd = " + fileHandle);
+            }
+        }
+        checkWriteError();
     }
 
     @Override
-    public void write(int b) throws IOException {
+    public synchronized void write(int b) throws IOException {
+        checkWriteError();
         bf.put((byte) b);
         if (bf.position() == bf.capacity()) {
             cfsWrite();
@@ -80,6 +271,7 @@ public class CubefsOutputStream extends OutputStream implements Syncable {
     @Override
     public synchronized void write(byte[] b, int off, int len) throws IOException {
         LOG.debug("write: fd=" + this.fileHandle + " offset=" + off + " length=" + len);
+        checkWriteError();
         while (len > 0) {
             int wsize = bf.capacity() - bf.position();
             if (len < wsize) {
@@ -100,17 +292,56 @@ public class CubefsOutputStream extends OutputStream implements Syncable {
         if (closed) {
             return;
         }
+        Throwable failure = null;
         try {
             flush();
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
         } finally {
             try {
-                this.bf = null;
+                if (writePool != null) {
+                    waitQuietly();
+                }
+                releaseBuffers();
                 closed = true;
                 cfs.close(fileHandle);
             } catch (Exception e) {
-                throw new IOException("close failed, fd = " + fileHandle);
+                // keep the write error that is already propagating
+                if (failure != null) {
+                    failure.addSuppressed(e);
+                } else {
+                    throw new IOException("close failed, fd = " + fileHandle, e);
+                }
+            }
+        }
+    }
+
+    private void releaseBuffers() {
+        if (bf != null) {
+            bufferPool.returnBuffer(bf);
+            bf = null;
+        }
+        ByteBuffer b;
+        while ((b = freeBuffers.poll()) != null) {
+            bufferPool.returnBuffer(b);
+        }
+    }
+
+    private void waitQuietly() {
+        boolean interrupted = false;
+        synchronized (writeLock) {
+            while (pendingWrites > 0) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
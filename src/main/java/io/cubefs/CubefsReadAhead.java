@@ -0,0 +1,241 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import com.sun.jna.Native;
+import org.apache.hadoop.util.DirectBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sequential read-ahead for one {@link CubefsInputStream}. Keeps up to {@code depth} reads of
+ * {@code chunkSize} bytes in flight on a shared executor, each into its own buffer from the
+ * DirectBufferPool. A read returning nothing marks the end of the file, past which nothing is
+ * read ahead again. Not thread safe, the owning stream calls it under its own lock.
+ */
+class CubefsReadAhead {
+    private static final Logger LOG = LoggerFactory.getLogger(CubefsFileSystem.class);
+
+    private final CubefsMount cfs;
+    private final ExecutorService executor;
+    private final DirectBufferPool bufferPool;
+    private final int fd;
+    private final String path;
+    private final int depth;
+    private final int chunkSize;
+    private final ArrayDeque<Fetch> inflight = new ArrayDeque<>();
+    private long nextOffset;
+    // end of the file as found by an empty read
+    private long endOffset = Long.MAX_VALUE;
+
+    CubefsReadAhead(CubefsMount cfs, ExecutorService executor, DirectBufferPool bufferPool, int fd, String path,
+                    int depth, int chunkSize) {
+        this.cfs = cfs;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.fd = fd;
+        this.path = path;
+        this.depth = depth;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the data starting at {@code offset}, waiting for the in-flight read if there is one
+     * and topping the pipeline back up to {@code depth}. The returned fetch owns a pooled buffer
+     * that the caller must hand back to the pool. Returns null if nothing could be scheduled or
+     * {@code offset} is at or past the end of the file, in which case the caller reads
+     * synchronously.
+     */
+    Fetch next(long offset) throws IOException {
+        if (offset >= endOffset) {
+            cancel();
+            return null;
+        }
+        Fetch head = inflight.peekFirst();
+        if (head != null && head.offset != offset) {
+            cancel();
+        }
+        if (inflight.isEmpty()) {
+            nextOffset = offset;
+        }
+        fill();
+        head = inflight.pollFirst();
+        if (head == null) {
+            return null;
+        }
+        try {
+            head.await();
+        } catch (IOException e) {
+            head.release();
+            cancel();
+            throw e;
+        }
+        if (head.size() == 0) {
+            // the reads queued behind it are past the end of the file
+            endOffset = head.offset;
+            cancel();
+        } else {
+            fill();
+        }
+        return head;
+    }
+
+    private void fill() {
+        while (inflight.size() < depth && nextOffset < endOffset) {
+            Fetch f = new Fetch(nextOffset, bufferPool.getBuffer(chunkSize));
+            try {
+                executor.execute(f);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("read-ahead rejected, path=" + path);
+                f.release();
+                return;
+            }
+            inflight.addLast(f);
+            nextOffset += chunkSize;
+        }
+    }
+
+    /**
+     * Drops every outstanding read. Reads that have not started yet are skipped, running ones
+     * hand their buffer back to the pool when they finish.
+     */
+    void cancel() {
+        Fetch f;
+        while ((f = inflight.pollFirst()) != null) {
+            f.abandon();
+        }
+    }
+
+    /**
+     * Like {@link #cancel()}, but waits for running reads so that the fd can be closed safely.
+     */
+    void close() {
+        Fetch f;
+        while ((f = inflight.pollFirst()) != null) {
+            f.abandonAndWait();
+        }
+    }
+
+    final class Fetch implements Runnable {
+        final long offset;
+        private ByteBuffer buf;
+        private long size;
+        private IOException error;
+        private boolean started;
+        private boolean done;
+        private boolean abandoned;
+
+        Fetch(long offset, ByteBuffer buf) {
+            this.offset = offset;
+            this.buf = buf;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer target;
+            synchronized (this) {
+                if (abandoned) {
+                    return;
+                }
+                started = true;
+                target = buf;
+            }
+            long r = 0;
+            IOException e = null;
+            try {
+                r = cfs.read(fd, Native.getDirectBufferPointer(target), (long) target.capacity(), offset, path);
+            } catch (IOException ex) {
+                e = ex;
+            } catch (RuntimeException ex) {
+                e = new IOException("read-ahead failed, path=" + path, ex);
+            }
+            synchronized (this) {
+                size = r;
+                error = e;
+                done = true;
+                if (abandoned) {
+                    release();
+                }
+                notifyAll();
+            }
+        }
+
+        synchronized void await() throws IOException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for read-ahead, path=" + path);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /** Number of bytes read, 0 at end of file. Only valid after {@link #await()}. */
+        synchronized long size() {
+            return size;
+        }
+
+        /** Transfers the filled buffer to the caller. */
+        synchronized ByteBuffer take() {
+            ByteBuffer b = buf;
+            buf = null;
+            return b;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (!started || done) {
+                release();
+            }
+        }
+
+        synchronized void abandonAndWait() {
+            abandoned = true;
+            boolean interrupted = false;
+            while (started && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (!started || done) {
+                release();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void release() {
+            if (buf != null) {
+                bufferPool.returnBuffer(buf);
+                buf = null;
+            }
+        }
+    }
+}
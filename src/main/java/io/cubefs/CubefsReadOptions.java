@@ -0,0 +1,63 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Read settings shared by all {@link CubefsInputStream}s of one file system.
+ */
+class CubefsReadOptions {
+    static final CubefsReadOptions DEFAULT = new CubefsReadOptions(0, 0, CubefsInputPolicy.NORMAL,
+            CubefsConfigs.CFS_INPUT_RANDOM_READ_SIZE_DEFAULT, CubefsConfigs.CFS_VECTORED_READ_MIN_SEEK_SIZE_DEFAULT,
+            CubefsConfigs.CFS_VECTORED_READ_MAX_MERGED_SIZE_DEFAULT);
+
+    // number of read-ahead buffers kept in flight, 0 disables read-ahead
+    final int readAheadDepth;
+    // size of each read-ahead buffer
+    final int readAheadSize;
+    final CubefsInputPolicy inputPolicy;
+    // minimum size of a buffer refill while reading randomly
+    final int randomReadSize;
+    // vectored ranges closer than this are read with one request
+    final int vectoredMinSeek;
+    // upper bound of a merged vectored request
+    final int vectoredMaxMerged;
+
+    CubefsReadOptions(int readAheadDepth, int readAheadSize, CubefsInputPolicy inputPolicy, int randomReadSize,
+                      int vectoredMinSeek, int vectoredMaxMerged) {
+        this.readAheadDepth = readAheadDepth;
+        this.readAheadSize = readAheadSize;
+        this.inputPolicy = inputPolicy;
+        this.randomReadSize = randomReadSize;
+        this.vectoredMinSeek = vectoredMinSeek;
+        this.vectoredMaxMerged = vectoredMaxMerged;
+    }
+
+    static CubefsReadOptions fromConf(Configuration conf) {
+        int depth = 0;
+        int size = 0;
+        if (conf.getBoolean(CubefsConfigs.CFS_READAHEAD_ENABLE, CubefsConfigs.CFS_READAHEAD_ENABLE_DEFAULT)) {
+            depth = conf.getInt(CubefsConfigs.CFS_READAHEAD_DEPTH, CubefsConfigs.CFS_READAHEAD_DEPTH_DEFAULT);
+            long window = conf.getLong(CubefsConfigs.CFS_READAHEAD_WINDOW_SIZE, CubefsConfigs.CFS_READAHEAD_WINDOW_SIZE_DEFAULT);
+            size = depth > 0 ? (int) Math.min(window / depth, Integer.MAX_VALUE) : 0;
+        }
+        return new CubefsReadOptions(depth, size,
+                CubefsInputPolicy.fromString(conf.get(CubefsConfigs.CFS_INPUT_FADVISE, CubefsConfigs.CFS_INPUT_FADVISE_DEFAULT)),
+                conf.getInt(CubefsConfigs.CFS_INPUT_RANDOM_READ_SIZE, CubefsConfigs.CFS_INPUT_RANDOM_READ_SIZE_DEFAULT),
+                conf.getInt(CubefsConfigs.CFS_VECTORED_READ_MIN_SEEK_SIZE, CubefsConfigs.CFS_VECTORED_READ_MIN_SEEK_SIZE_DEFAULT),
+                conf.getInt(CubefsConfigs.CFS_VECTORED_READ_MAX_MERGED_SIZE, CubefsConfigs.CFS_VECTORED_READ_MAX_MERGED_SIZE_DEFAULT));
+    }
+}
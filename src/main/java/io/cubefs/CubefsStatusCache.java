@@ -0,0 +1,152 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.fs.FileStatus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of {@link FileStatus} keyed by absolute path, which also remembers paths found
+ * missing. Entries expire after a fixed time, and the file system drops the entries of every path
+ * it mutates itself. Changes made by other clients become visible once the entry expires.
+ */
+class CubefsStatusCache {
+    /**
+     * Returned by {@link #get} for a path recently found not to exist.
+     */
+    static final FileStatus MISSING = new FileStatus();
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LinkedHashMap<String, CacheEntry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class CacheEntry {
+        final FileStatus status;
+        final long expires;
+
+        CacheEntry(FileStatus status, long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param ttlMillis         lifetime of a cached status, 0 to not cache statuses
+     * @param negativeTtlMillis lifetime of a missing-path entry, 0 to not cache missing paths
+     */
+    CubefsStatusCache(long ttlMillis, long negativeTtlMillis, final int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached status of {@code path}, {@link #MISSING} if it was found not to exist, or
+     * null if there is no live entry.
+     */
+    synchronized FileStatus get(String path) {
+        CacheEntry e = entries.get(path);
+        if (e != null && e.expires - System.nanoTime() > 0) {
+            if (e.status == MISSING) {
+                negativeHits.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return e.status;
+        }
+        if (e != null) {
+            entries.remove(path);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void put(String path, FileStatus status) {
+        if (ttlNanos > 0) {
+            entries.put(path, new CacheEntry(status, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    synchronized void putMissing(String path) {
+        if (negativeTtlNanos > 0) {
+            entries.put(path, new CacheEntry(MISSING, System.nanoTime() + negativeTtlNanos));
+        }
+    }
+
+    /**
+     * Drops {@code path}, its parent, whose modification time changes with it, and the missing
+     * entries of all ancestors, which may have been created along with it.
+     */
+    synchronized void invalidate(String path) {
+        entries.remove(path);
+        String parent = parentOf(path);
+        entries.remove(parent);
+        while (!"/".equals(parent)) {
+            parent = parentOf(parent);
+            CacheEntry e = entries.get(parent);
+            if (e != null && e.status == MISSING) {
+                entries.remove(parent);
+            }
+        }
+    }
+
+    /**
+     * Drops what {@link #invalidate} drops and everything below {@code path}.
+     */
+    synchronized void invalidateTree(String path) {
+        invalidate(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long negativeHits() {
+        return negativeHits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    static String parentOf(String path) {
+        int i = path.lastIndexOf('/', path.length() - 2);
+        return i <= 0 ? "/" : path.substring(0, i);
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Sums the length, file count and directory count of a tree, forking a task per subdirectory.
+ * Entries are read with {@link CubefsMount#readdirPlus} and aggregated from the page columns,
+ * without FileStatus or Path objects. The result is {@code {length, files, directories}}, the
+ * directory itself included. Failures are thrown as {@link UncheckedIOException}.
+ */
+class CubefsSummaryTask extends RecursiveTask<long[]> {
+    static final int LENGTH = 0;
+    static final int FILES = 1;
+    static final int DIRECTORIES = 2;
+
+    private final CubefsClientPool clients;
+    private final String dir;
+    private final int pageSize;
+
+    CubefsSummaryTask(CubefsClientPool clients, String dir, int pageSize) {
+        this.clients = clients;
+        this.dir = dir;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    protected long[] compute() {
+        long[] totals = new long[3];
+        totals[DIRECTORIES] = 1;
+        List<CubefsSummaryTask> children = new ArrayList<>();
+        try {
+            CubefsMount cfs = clients.next();
+            int fd = cfs.open(dir, CubefsMount.O_RDONLY, 0);
+            if (fd == CubefsMount.ENOENT) {
+                // removed while walking
+                return new long[3];
+            }
+            if (fd < 0) {
+                throw CubefsMount.error(fd, dir);
+            }
+            try {
+                CubefsDirPage page = CubefsDirPage.forThread(pageSize);
+                String prefix = dir.endsWith("/") ? dir : dir + "/";
+                while (cfs.readdirPlus(fd, page, dir) > 0) {
+                    for (int i = 0; i < page.size(); i++) {
+                        if (page.isDirectory(i)) {
+                            CubefsSummaryTask child = new CubefsSummaryTask(clients, prefix + page.name(i), pageSize);
+                            child.fork();
+                            children.add(child);
+                        } else {
+                            totals[FILES]++;
+                            totals[LENGTH] += page.length(i);
+                        }
+                    }
+                }
+            } finally {
+                cfs.close(fd);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (CubefsSummaryTask child : children) {
+            long[] sub = child.join();
+            totals[LENGTH] += sub[LENGTH];
+            totals[FILES] += sub[FILES];
+            totals[DIRECTORIES] += sub[DIRECTORIES];
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the IOException behind a failed task, as rethrown by {@code invoke}.
+     */
+    static IOException unwrap(RuntimeException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return (IOException) t;
+            }
+        }
+        return new IOException(e);
+    }
+}
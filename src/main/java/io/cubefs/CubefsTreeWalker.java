@@ -0,0 +1,208 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists all files below a directory, walking subdirectories concurrently on a fork-join pool owned
+ * by the walk. Files are handed to the caller through a bounded queue, so the walk stalls while the
+ * caller does not consume; as the pool is its own, a slow caller holds up no other operation. The
+ * walk stops at the first error, which is rethrown by the iterator, and is cancelled by
+ * {@link #close()}, once the iterator is dropped and collected, or when the file system is closed.
+ */
+class CubefsTreeWalker implements RemoteIterator<LocatedFileStatus>, Closeable {
+    static final int QUEUE_CAPACITY = 4096;
+    private static final long POLL_MILLIS = 100;
+
+    private final Walk walk;
+    // cancels the walk, through the listing tracker if any
+    private final Closeable closer;
+    private LocatedFileStatus next;
+
+    /**
+     * @param pool     pool running the walk, shut down once the walk is over
+     * @param listings tracker to join until this listing is over, or null
+     */
+    CubefsTreeWalker(CubefsFileSystem fs, Path root, ForkJoinPool pool, FileSystem.Statistics statistics,
+                     CubefsListingTracker listings) {
+        this.walk = new Walk(fs, pool, statistics);
+        this.closer = listings != null ? listings.track(this, walk) : walk;
+        walk.pending.incrementAndGet();
+        pool.execute(walk.new ListTask(root));
+    }
+
+    /**
+     * State shared with the tasks. It does not refer to the iterator, so that a dropped iterator is
+     * collected and the walk cancelled by the listing tracker.
+     */
+    private static final class Walk implements Closeable {
+        final CubefsFileSystem fs;
+        final ForkJoinPool pool;
+        final FileSystem.Statistics statistics;
+        final BlockingQueue<LocatedFileStatus> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        // directories listed or waiting to be listed
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean done;
+        volatile boolean cancelled;
+        volatile IOException error;
+
+        Walk(CubefsFileSystem fs, ForkJoinPool pool, FileSystem.Statistics statistics) {
+            this.fs = fs;
+            this.pool = pool;
+            this.statistics = statistics;
+        }
+
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+            pool.shutdownNow();
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+
+        /**
+         * Blocks until the queue has room, returns false if the walk was cancelled meanwhile.
+         */
+        boolean emit(LocatedFileStatus status) throws InterruptedException {
+            while (!queue.offer(status, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        final class ListTask extends RecursiveAction {
+            private final Path dir;
+
+            ListTask(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    if (!cancelled) {
+                        list();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } catch (InterruptedException e) {
+                    fail(new InterruptedIOException("Interrupted while listing " + dir));
+                } catch (RuntimeException e) {
+                    fail(new IOException("Failed to list " + dir, e));
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        done = true;
+                        pool.shutdown();
+                    }
+                }
+            }
+
+            private void list() throws IOException, InterruptedException {
+                statistics.incrementReadOps(1);
+                CubefsDirectoryIterator it = fs.openDirectory(dir);
+                try {
+                    while (!cancelled && it.hasNext()) {
+                        FileStatus st = it.next();
+                        if (st.isDirectory()) {
+                            pending.incrementAndGet();
+                            new ListTask(st.getPath()).fork();
+                        } else if (!emit(new LocatedFileStatus(st, fs.getFileBlockLocations(st, 0, st.getLen())))) {
+                            return;
+                        }
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+
+            private void fail(IOException e) {
+                // tasks stopped by a cancellation are not errors
+                if (error == null && !cancelled) {
+                    error = e;
+                }
+                Walk.this.cancel();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        while (next == null) {
+            IOException e = walk.error;
+            if (e != null) {
+                close();
+                throw e;
+            }
+            if (walk.cancelled) {
+                return false;
+            }
+            boolean done = walk.done;
+            try {
+                next = walk.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while listing files");
+            }
+            // everything was queued before done was set
+            if (next == null && done) {
+                next = walk.queue.poll();
+                if (next == null) {
+                    close();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public LocatedFileStatus next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more files");
+        }
+        LocatedFileStatus result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Stops the walk and its threads.
+     */
+    @Override
+    public void close() throws IOException {
+        closer.close();
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Write settings shared by all {@link CubefsOutputStream}s of one file system.
+ */
+class CubefsWriteOptions {
+    static final CubefsWriteOptions DEFAULT = new CubefsWriteOptions(0, 0, 0);
+
+    // number of full buffers written in the background while the next one fills, 0 writes in the caller
+    final int asyncBuffers;
+    // file offset from which buffers are written concurrently
+    final long parallelThreshold;
+    // number of buffers written concurrently once past the threshold, 0 disables parallel writes
+    final int parallelParts;
+
+    CubefsWriteOptions(int asyncBuffers, long parallelThreshold, int parallelParts) {
+        this.asyncBuffers = asyncBuffers;
+        this.parallelThreshold = parallelThreshold;
+        this.parallelParts = parallelParts;
+    }
+
+    static CubefsWriteOptions fromConf(Configuration conf) {
+        int asyncBuffers = 0;
+        if (conf.getBoolean(CubefsConfigs.CFS_WRITE_ASYNC_ENABLE, CubefsConfigs.CFS_WRITE_ASYNC_ENABLE_DEFAULT)) {
+            asyncBuffers = Math.max(1, conf.getInt(CubefsConfigs.CFS_WRITE_ASYNC_BUFFERS, CubefsConfigs.CFS_WRITE_ASYNC_BUFFERS_DEFAULT));
+        }
+        long parallelThreshold = 0;
+        int parallelParts = 0;
+        if (conf.getBoolean(CubefsConfigs.CFS_WRITE_PARALLEL_ENABLE, CubefsConfigs.CFS_WRITE_PARALLEL_ENABLE_DEFAULT)) {
+            parallelThreshold = Math.max(0, conf.getLong(CubefsConfigs.CFS_WRITE_PARALLEL_THRESHOLD, CubefsConfigs.CFS_WRITE_PARALLEL_THRESHOLD_DEFAULT));
+            parallelParts = Math.max(1, conf.getInt(CubefsConfigs.CFS_WRITE_PARALLEL_PARTS, CubefsConfigs.CFS_WRITE_PARALLEL_PARTS_DEFAULT));
+        }
+        return new CubefsWriteOptions(asyncBuffers, parallelThreshold, parallelParts);
+    }
+}
@@ -0,0 +1,1359 @@
+package io.cubefs;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Runs the file system against {@link InMemoryCubefsLib}, so it needs neither libcfs.so nor a cluster.
+ */
+public class InMemoryCubeFileSystemTest extends TestCase {
+    FileSystem fs;
+
+    static Configuration newConf() {
+        Configuration cfg = new Configuration();
+        cfg.set("fs.cfs.impl", CubefsFileSystem.class.getName());
+        cfg.setBoolean("fs.cfs.impl.disable.cache", true);
+        cfg.set(CubefsConfigs.CFS_MASTER_ADDRESS_KEY, "127.0.0.1:17010");
+        cfg.set(CubefsConfigs.CFS_ACCESS_KEY, "ak");
+        cfg.set(CubefsConfigs.CFS_SECRET_KEY, "sk");
+        cfg.set(CubefsConfigs.CFS_NATIVE_LIB_IMPL, InMemoryCubefsLib.class.getName());
+        return cfg;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        InMemoryCubefsLib.reset();
+        fs = FileSystem.get(URI.create("cfs://test/"), newConf());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        fs.close();
+    }
+
+    public void testWriteRead() throws IOException {
+        Path file = new Path("/a/b/file");
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        FSDataOutputStream out = fs.create(file);
+        out.write(data);
+        out.close();
+        assertEquals(data.length, fs.getFileStatus(file).getLen());
+
+        byte[] read = new byte[data.length];
+        FSDataInputStream in = fs.open(file);
+        in.readFully(read);
+        assertEquals(-1, in.read());
+        in.readFully(1000, read, 0, 10);
+        in.close();
+        assertEquals(data[1000], read[0]);
+        assertEquals(data[1009], read[9]);
+    }
+
+    public void testCreateNoOverwrite() throws IOException {
+        Path file = new Path("/file");
+        fs.create(file).close();
+        try {
+            fs.create(file, false).close();
+            fail("created existing file without overwrite");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+    }
+
+    public void testCreateRoundTrips() throws IOException {
+        CubefsFileSystem cfs = (CubefsFileSystem) fs;
+        fs.mkdirs(new Path("/dir"));
+        long ops = cfs.getMetadataOps();
+        FSDataOutputStream out = fs.create(new Path("/dir/file"));
+        out.write(new byte[10]);
+        out.close();
+        assertEquals(1, cfs.getMetadataOps() - ops);
+
+        // the refused open, the lookup refusing a directory and the truncating open
+        ops = cfs.getMetadataOps();
+        fs.create(new Path("/dir/file"), true).close();
+        assertEquals(3, cfs.getMetadataOps() - ops);
+        assertEquals(0, fs.getFileStatus(new Path("/dir/file")).getLen());
+        assertEquals(2, cfs.getFilesCreated());
+
+        // no open flag creates parents: the failed open, cfs_mkdirs and the open again
+        ops = cfs.getMetadataOps();
+        fs.create(new Path("/new/parent/file")).close();
+        assertEquals(3, cfs.getMetadataOps() - ops);
+        assertTrue(fs.exists(new Path("/new/parent/file")));
+        try {
+            fs.create(new Path("/dir"), true);
+            fail("overwrote a directory");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+        assertTrue(fs.getFileStatus(new Path("/dir")).isDirectory());
+        try {
+            fs.create(new Path("/dir/file/child"));
+            fail("created a file under a file");
+        } catch (ParentNotDirectoryException e) {
+            // expected
+        }
+        // any other failure to create the parents is reported as is
+        InMemoryCubefsLib.setMkdirsError(CubefsMount.ENOSPACE);
+        try {
+            fs.create(new Path("/full/file"));
+            fail("created a file without its parent");
+        } catch (IOException e) {
+            assertFalse(e instanceof ParentNotDirectoryException);
+        }
+    }
+
+    public void testCreateNonRecursive() throws IOException {
+        EnumSet<CreateFlag> create = EnumSet.of(CreateFlag.CREATE);
+        try {
+            fs.createNonRecursive(new Path("/missing/file"), FsPermission.getFileDefault(), create, 4096, (short) 1, 1 << 20, null);
+            fail("created a file without its parent");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertFalse(fs.exists(new Path("/missing")));
+
+        fs.mkdirs(new Path("/dir"));
+        fs.createNonRecursive(new Path("/dir/file"), FsPermission.getFileDefault(), create, 4096, (short) 1, 1 << 20, null).close();
+        try {
+            fs.createNonRecursive(new Path("/dir/file"), FsPermission.getFileDefault(), create, 4096, (short) 1, 1 << 20, null);
+            fail("created existing file without overwrite");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+        fs.createNonRecursive(new Path("/dir/file"), FsPermission.getFileDefault(),
+                EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE), 4096, (short) 1, 1 << 20, null).close();
+    }
+
+    public void testListRenameDelete() throws IOException {
+        Path dir = new Path("/dir");
+        fs.mkdirs(new Path(dir, "sub"));
+        for (int i = 0; i < 5; i++) {
+            fs.create(new Path(dir, "file_" + i)).close();
+        }
+        FileStatus[] st = fs.listStatus(dir);
+        assertEquals(6, st.length);
+
+        Path moved = new Path("/moved");
+        assertTrue(fs.rename(dir, moved));
+        assertFalse(fs.exists(dir));
+        assertTrue(fs.isDirectory(new Path(moved, "sub")));
+        assertTrue(fs.isFile(new Path(moved, "file_3")));
+
+        assertTrue(fs.delete(moved, true));
+        assertFalse(fs.exists(moved));
+        assertEquals(0, fs.listStatus(new Path("/")).length);
+    }
+
+    public void testLatency() throws IOException {
+        InMemoryCubefsLib.setLatencyMicros(1000);
+        try {
+            long start = System.nanoTime();
+            fs.mkdirs(new Path("/slow"));
+            assertTrue((System.nanoTime() - start) >= 1000000L);
+        } finally {
+            InMemoryCubefsLib.setLatencyMicros(0);
+        }
+        assertEquals(Arrays.asList("slow"), Arrays.asList(fs.listStatus(new Path("/"))[0].getPath().getName()));
+    }
+
+    public void testStatusCache() throws IOException {
+        Configuration cfg = newConf();
+        cfg.setBoolean(CubefsConfigs.CFS_METADATA_CACHE_ENABLE, true);
+        cfg.setLong(CubefsConfigs.CFS_METADATA_CACHE_TTL_MS, 60000L);
+        CubefsFileSystem cached = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            Path file = new Path("/dir/file");
+            cached.create(file).close();
+            assertEquals(0, cached.getFileStatus(file).getLen());
+            assertEquals(0, cached.getFileStatus(file).getLen());
+            assertEquals(1, cached.getStatusCacheHits());
+
+            // own writes are visible once the stream is closed
+            FSDataOutputStream out = cached.create(file, true);
+            out.write(new byte[10]);
+            out.close();
+            assertEquals(10, cached.getFileStatus(file).getLen());
+
+            // listStatus fills the cache for the children
+            cached.listStatus(new Path("/dir"));
+            long hits = cached.getStatusCacheHits();
+            assertTrue(cached.isFile(file));
+            assertEquals(hits + 1, cached.getStatusCacheHits());
+
+            Path moved = new Path("/moved");
+            assertTrue(cached.rename(new Path("/dir"), moved));
+            assertFalse(cached.exists(file));
+            assertEquals(10, cached.getFileStatus(new Path(moved, "file")).getLen());
+
+            assertTrue(cached.delete(moved, true));
+            assertFalse(cached.exists(new Path(moved, "file")));
+        } finally {
+            cached.close();
+        }
+    }
+
+    public void testNegativeCache() throws IOException {
+        Configuration cfg = newConf();
+        cfg.setBoolean(CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_ENABLE, true);
+        cfg.setLong(CubefsConfigs.CFS_METADATA_CACHE_NEGATIVE_TTL_MS, 60000L);
+        CubefsFileSystem cached = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            Path marker = new Path("/out/_SUCCESS");
+            assertFalse(cached.exists(marker));
+            assertFalse(cached.exists(marker));
+            assertEquals(1, cached.getStatusCacheNegativeHits());
+            assertFalse(cached.exists(new Path("/out")));
+
+            // created by another client, hidden until the entry expires
+            fs.create(marker).close();
+            assertFalse(cached.exists(marker));
+
+            // creating a child clears the missing parent
+            cached.create(new Path("/out/part-0")).close();
+            assertTrue(cached.isDirectory(new Path("/out")));
+
+            cached.mkdirs(new Path("/a/b"));
+            assertTrue(cached.rename(new Path("/out"), new Path("/a/b/out")));
+            assertTrue(cached.exists(new Path("/a/b/out/_SUCCESS")));
+        } finally {
+            cached.close();
+        }
+    }
+
+    public void testListStatusIterator() throws IOException {
+        Configuration cfg = newConf();
+        cfg.setBoolean(CubefsConfigs.CFS_LIST_PREFETCH_ENABLE, true);
+        CubefsFileSystem prefetching = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            Path dir = new Path("/big");
+            int entries = 250;
+            for (int i = 0; i < entries; i++) {
+                fs.create(new Path(dir, String.format("file_%04d", i))).close();
+            }
+            int open = InMemoryCubefsLib.openFiles();
+            RemoteIterator<FileStatus> it = prefetching.listStatusIterator(dir);
+            int n = 0;
+            while (it.hasNext()) {
+                assertEquals(String.format("file_%04d", n), it.next().getPath().getName());
+                n++;
+            }
+            assertEquals(entries, n);
+            assertEquals(open, InMemoryCubefsLib.openFiles());
+
+            // stopping early and closing releases the directory
+            it = prefetching.listStatusIterator(dir);
+            it.next();
+            ((java.io.Closeable) it).close();
+            assertEquals(open, InMemoryCubefsLib.openFiles());
+
+            RemoteIterator<LocatedFileStatus> located = prefetching.listLocatedStatus(dir);
+            n = 0;
+            while (located.hasNext()) {
+                assertNotNull(located.next().getBlockLocations());
+                n++;
+            }
+            assertEquals(entries, n);
+        } finally {
+            prefetching.close();
+        }
+    }
+
+    public void testListStatusSmallPages() throws IOException {
+        Configuration cfg = newConf();
+        cfg.setInt(CubefsConfigs.CFS_READDIR_BATCH_SIZE, 7);
+        FileSystem paged = FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            Path dir = new Path("/paged");
+            fs.mkdirs(new Path(dir, "sub"));
+            for (int i = 0; i < 50; i++) {
+                FSDataOutputStream out = fs.create(new Path(dir, "file_" + i));
+                out.write(new byte[i]);
+                out.close();
+            }
+            FileStatus[] st = paged.listStatus(dir);
+            assertEquals(51, st.length);
+            for (FileStatus s : st) {
+                if (s.getPath().getName().equals("sub")) {
+                    assertTrue(s.isDirectory());
+                } else {
+                    assertEquals(Integer.parseInt(s.getPath().getName().substring(5)), s.getLen());
+                }
+            }
+        } finally {
+            paged.close();
+        }
+    }
+
+    public void testListFilesRecursive() throws IOException {
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++) {
+                Path dir = new Path("/table/p" + i + "/q" + j);
+                fs.mkdirs(dir);
+                for (int k = 0; k < 3; k++) {
+                    Path file = new Path(dir, "part-" + k);
+                    fs.create(file).close();
+                    expected.add(file.toUri().getPath());
+                }
+            }
+        }
+        fs.mkdirs(new Path("/table/empty"));
+
+        Set<String> listed = new HashSet<>();
+        RemoteIterator<LocatedFileStatus> it = fs.listFiles(new Path("/table"), true);
+        while (it.hasNext()) {
+            LocatedFileStatus st = it.next();
+            assertTrue(st.isFile());
+            assertTrue(listed.add(st.getPath().toUri().getPath()));
+        }
+        assertEquals(expected, listed);
+
+        it = fs.listFiles(new Path("/table"), true);
+        assertTrue(it.hasNext());
+        ((java.io.Closeable) it).close();
+
+        try {
+            fs.listFiles(new Path("/missing"), true);
+            fail("listed a missing directory");
+        } catch (java.io.FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testContentSummary() throws IOException {
+        long length = 0;
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                FSDataOutputStream out = fs.create(new Path("/du/d" + i + "/f" + j));
+                out.write(new byte[i * 10 + j]);
+                out.close();
+                length += i * 10 + j;
+            }
+        }
+        fs.mkdirs(new Path("/du/empty/nested"));
+        ContentSummary summary = fs.getContentSummary(new Path("/du"));
+        assertEquals(length, summary.getLength());
+        assertEquals(length, summary.getSpaceConsumed());
+        assertEquals(12, summary.getFileCount());
+        assertEquals(7, summary.getDirectoryCount());
+
+        summary = fs.getContentSummary(new Path("/du/d3/f2"));
+        assertEquals(32, summary.getLength());
+        assertEquals(1, summary.getFileCount());
+        assertEquals(0, summary.getDirectoryCount());
+    }
+
+    public void testDeleteRecursive() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++) {
+                fs.create(new Path("/rm/d" + i + "/e/f" + j)).close();
+            }
+        }
+        fs.mkdirs(new Path("/rm/empty"));
+        try {
+            fs.delete(new Path("/rm"), false);
+            fail("Deleted a non-empty directory");
+        } catch (PathIsNotEmptyDirectoryException e) {
+            // expected
+        }
+        assertTrue(fs.delete(new Path("/rm/empty"), false));
+
+        int open = InMemoryCubefsLib.openFiles();
+        CubefsDeleteProgress progress = new CubefsDeleteProgress();
+        assertTrue(((CubefsFileSystem) fs).delete(new Path("/rm"), true, progress));
+        assertEquals(20, progress.getFilesDeleted());
+        assertEquals(11, progress.getDirectoriesDeleted());
+        assertFalse(fs.exists(new Path("/rm")));
+        assertFalse(fs.delete(new Path("/rm"), true));
+        assertEquals(open, InMemoryCubefsLib.openFiles());
+    }
+
+    public void testBulkDelete() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Path path = new Path("/bulk/f" + i);
+            fs.create(path).close();
+            paths.add(path);
+        }
+        paths.add(new Path("/bulk/missing"));
+        fs.mkdirs(new Path("/bulk/dir"));
+        paths.add(new Path("/bulk/dir"));
+
+        Map<Path, IOException> failures = ((CubefsFileSystem) fs).bulkDelete(paths);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(new Path("/bulk/dir")) instanceof PathIsDirectoryException);
+        FileStatus[] left = fs.listStatus(new Path("/bulk"));
+        assertEquals(1, left.length);
+        assertEquals("dir", left[0].getPath().getName());
+    }
+
+    public void testRenameRoundTrips() throws IOException {
+        CubefsFileSystem cfs = (CubefsFileSystem) fs;
+        fs.create(new Path("/src/a")).close();
+        fs.create(new Path("/src/b")).close();
+        fs.mkdirs(new Path("/dst"));
+        long ops = cfs.getMetadataOps();
+        assertTrue(fs.rename(new Path("/src/a"), new Path("/dst/a")));
+        assertEquals(1, cfs.getMetadataOps() - ops);
+
+        // into an existing directory: the refused rename, the lookup and the rename into it
+        ops = cfs.getMetadataOps();
+        assertTrue(fs.rename(new Path("/src/b"), new Path("/dst")));
+        assertEquals(3, cfs.getMetadataOps() - ops);
+        assertTrue(fs.isFile(new Path("/dst/b")));
+        // onto an existing file
+        fs.create(new Path("/src/a")).close();
+        assertFalse(fs.rename(new Path("/src/a"), new Path("/dst/b")));
+        assertFalse(fs.rename(new Path("/src/missing"), new Path("/dst/c")));
+        // an empty directory is not replaced, the source is moved into it
+        fs.mkdirs(new Path("/empty"));
+        assertTrue(fs.rename(new Path("/src"), new Path("/empty")));
+        assertTrue(fs.isFile(new Path("/empty/src/a")));
+        // nor is an entry of the same name in it
+        fs.mkdirs(new Path("/other/src"));
+        assertFalse(fs.rename(new Path("/other/src"), new Path("/empty")));
+        assertTrue(fs.isFile(new Path("/empty/src/a")));
+    }
+
+    public void testRenameInto() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Path path = new Path("/task" + (i % 5) + "/part-" + i);
+            fs.create(path).close();
+            paths.add(path);
+        }
+        fs.mkdirs(new Path("/out"));
+        fs.create(new Path("/out/part-7")).close();
+        paths.add(new Path("/task0/missing"));
+
+        CubefsFileSystem cfs = (CubefsFileSystem) fs;
+        long ops = cfs.getMetadataOps();
+        Map<Path, IOException> failures = cfs.renameInto(paths, new Path("/out"));
+        // one rename each, the existing entry is refused by it without a lookup
+        assertEquals(paths.size(), cfs.getMetadataOps() - ops);
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(new Path("/task2/part-7")) instanceof FileAlreadyExistsException);
+        assertTrue(failures.get(new Path("/task0/missing")) instanceof FileNotFoundException);
+        assertEquals(50, fs.listStatus(new Path("/out")).length);
+        assertTrue(fs.exists(new Path("/task2/part-7")));
+    }
+
+    private FileSystem nativeLocations() throws IOException {
+        Configuration cfg = newConf();
+        cfg.setBoolean(CubefsConfigs.CFS_BLOCK_LOCATIONS_NATIVE_ENABLE, true);
+        return FileSystem.get(URI.create("cfs://test/"), cfg);
+    }
+
+    public void testBlockLocations() throws IOException {
+        Path file = new Path("/locality/file");
+        long extent = InMemoryCubefsLib.EXTENT_SIZE;
+        FSDataOutputStream out = fs.create(file);
+        out.write(new byte[(int) (3 * extent + extent / 2)]);
+        out.close();
+        FileStatus st = fs.getFileStatus(file);
+
+        // off by default, libcfs releases do not export cfs_get_extent_locations yet
+        assertEquals("localhost0", fs.getFileBlockLocations(st, 0, st.getLen())[0].getHosts()[0]);
+
+        CubefsFileSystem cfs = (CubefsFileSystem) nativeLocations();
+        try {
+            BlockLocation[] locations = cfs.getFileBlockLocations(st, 0, st.getLen());
+            assertEquals(4, locations.length);
+            long offset = 0;
+            for (BlockLocation location : locations) {
+                assertEquals(offset, location.getOffset());
+                assertEquals(2, location.getHosts().length);
+                assertTrue(location.getHosts()[0].startsWith("datanode-"));
+                assertTrue(location.getNames()[0].endsWith(":17310"));
+                offset += location.getLength();
+            }
+            assertEquals(st.getLen(), offset);
+
+            // answered from the cached layout
+            long ops = cfs.getMetadataOps();
+            locations = cfs.getFileBlockLocations(st, extent + 1, extent);
+            assertEquals(2, locations.length);
+            assertEquals(extent, locations[0].getOffset());
+            assertEquals(ops, cfs.getMetadataOps());
+        } finally {
+            cfs.close();
+        }
+    }
+
+    public void testSyntheticBlockLocations() throws IOException {
+        InMemoryCubefsLib.setExtentLocationsSupported(false);
+        Path file = new Path("/locality/file");
+        FSDataOutputStream out = fs.create(file);
+        out.write(new byte[10]);
+        out.close();
+        FileStatus st = fs.getFileStatus(file);
+        CubefsFileSystem cfs = (CubefsFileSystem) nativeLocations();
+        try {
+            // the missing function is no metadata op
+            long ops = cfs.getMetadataOps();
+            BlockLocation[] locations = cfs.getFileBlockLocations(st, 0, 10);
+            assertEquals(1, locations.length);
+            assertEquals("localhost0", locations[0].getHosts()[0]);
+            assertEquals(ops, cfs.getMetadataOps());
+        } finally {
+            cfs.close();
+        }
+    }
+
+    public void testClientPool() throws IOException {
+        Configuration conf = newConf();
+        conf.setInt(CubefsConfigs.CFS_CLIENT_POOL_SIZE, 3);
+        CubefsFileSystem pooled = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        try {
+            Set<CubefsMount> used = new HashSet<>();
+            for (int i = 0; i < 6; i++) {
+                used.add(pooled.mount());
+            }
+            assertEquals(3, used.size());
+
+            // fds stay on the client that opened them
+            for (int i = 0; i < 10; i++) {
+                FSDataOutputStream out = pooled.create(new Path("/pool/f" + i));
+                out.write(new byte[i]);
+                out.close();
+            }
+            assertEquals(10, pooled.listStatus(new Path("/pool")).length);
+            FSDataInputStream in = pooled.open(new Path("/pool/f9"));
+            in.readFully(new byte[9]);
+            in.close();
+            assertEquals(45, pooled.getContentSummary(new Path("/pool")).getLength());
+            assertTrue(pooled.delete(new Path("/pool"), true));
+        } finally {
+            pooled.close();
+        }
+    }
+
+    public void testClientPoolLeastLoaded() throws IOException {
+        Configuration conf = newConf();
+        conf.setInt(CubefsConfigs.CFS_CLIENT_POOL_SIZE, 2);
+        conf.set(CubefsConfigs.CFS_CLIENT_POOL_POLICY, "least-loaded");
+        CubefsFileSystem pooled = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        try {
+            pooled.create(new Path("/file")).close();
+            FSDataInputStream in = pooled.open(new Path("/file"));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(0, pooled.mount().getOpenFiles());
+            }
+            in.close();
+        } finally {
+            pooled.close();
+        }
+    }
+
+    public void testSharedClients() throws IOException {
+        Configuration conf = newConf();
+        conf.setBoolean(CubefsConfigs.CFS_CLIENT_SHARE_ENABLE, true);
+        CubefsFileSystem first = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        CubefsFileSystem second = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        CubefsFileSystem other = (CubefsFileSystem) FileSystem.get(URI.create("cfs://other/"), conf);
+        try {
+            assertSame(first.mount(), second.mount());
+            assertNotSame(first.mount(), other.mount());
+
+            first.create(new Path("/shared")).close();
+            first.close();
+            first.close();
+            // still open for the second instance
+            assertTrue(second.exists(new Path("/shared")));
+        } finally {
+            second.close();
+            other.close();
+        }
+    }
+
+    public void testLazyStart() throws IOException {
+        Configuration conf = newConf();
+        conf.set(CubefsConfigs.CFS_CLIENT_START_MODE, "lazy");
+        CubefsFileSystem lazy = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        try {
+            assertTrue(lazy.getStartupMicros().isEmpty());
+            assertTrue(lazy.mkdirs(new Path("/lazy")));
+            Map<String, Long> micros = lazy.getStartupMicros();
+            assertTrue(micros.containsKey("load"));
+            assertTrue(micros.containsKey("create"));
+            assertTrue(micros.containsKey("start"));
+            assertTrue(micros.containsKey("wait"));
+        } finally {
+            lazy.close();
+        }
+    }
+
+    public void testBackgroundStart() throws IOException {
+        Configuration conf = newConf();
+        conf.set(CubefsConfigs.CFS_CLIENT_START_MODE, "background");
+        CubefsFileSystem background = (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+        try {
+            background.create(new Path("/background")).close();
+            assertTrue(background.exists(new Path("/background")));
+            assertTrue(background.getStartupMicros().containsKey("start"));
+        } finally {
+            background.close();
+        }
+    }
+
+    public void testMetrics() throws IOException {
+        // off by default
+        assertNull(((CubefsFileSystem) fs).mount().getMetrics().getSourceName());
+        fs.close();
+        Configuration conf = newConf();
+        conf.setBoolean(CubefsConfigs.CFS_METRICS_ENABLE, true);
+        fs = FileSystem.get(URI.create("cfs://test/"), conf);
+        CubefsFileSystem cfs = (CubefsFileSystem) fs;
+        CubefsMetrics metrics = cfs.mount().getMetrics();
+        String source = metrics.getSourceName();
+        assertNotNull(DefaultMetricsSystem.instance().getSource(source));
+
+        long opens = metrics.getCount(CubefsMetrics.OPEN);
+        long bytesWritten = metrics.getBytesWritten();
+        long bytesRead = metrics.getBytesRead();
+        FSDataOutputStream out = fs.create(new Path("/metered"));
+        out.write(new byte[1000]);
+        out.close();
+        FSDataInputStream in = fs.open(new Path("/metered"));
+        in.readFully(new byte[1000]);
+        in.close();
+        assertEquals(opens + 2, metrics.getCount(CubefsMetrics.OPEN));
+        assertEquals(bytesWritten + 1000, metrics.getBytesWritten());
+        assertEquals(bytesRead + 1000, metrics.getBytesRead());
+        assertTrue(metrics.getCount(CubefsMetrics.WRITE) > 0);
+
+        // a missing path is an answer, not a failure
+        long errors = metrics.getErrors(CubefsMetrics.RENAME);
+        assertFalse(fs.rename(new Path("/missing"), new Path("/other")));
+        assertEquals(errors, metrics.getErrors(CubefsMetrics.RENAME));
+
+        fs.close();
+        assertNull(DefaultMetricsSystem.instance().getSource(source));
+    }
+
+    public void testLatencyHistogram() {
+        assertEquals(0, CubefsLatencyHistogram.bucket(0));
+        assertEquals(3, CubefsLatencyHistogram.bucket(3));
+        for (long us : new long[]{4, 7, 8, 100, 1000, 12345, 1L << 30}) {
+            int b = CubefsLatencyHistogram.bucket(us);
+            assertTrue(us <= CubefsLatencyHistogram.upperBound(b));
+            assertTrue(us > CubefsLatencyHistogram.upperBound(b - 1));
+        }
+
+        long second = TimeUnit.SECONDS.toNanos(1);
+        long t = 1000 * second;
+        CubefsLatencyHistogram h = new CubefsLatencyHistogram(10);
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 10, i == 100, t + i);
+        }
+        // nothing is published before the window is complete
+        assertEquals(0, h.snapshot(t + 5 * second).count);
+        CubefsLatencyHistogram.Snapshot s = h.snapshot(t + 10 * second);
+        assertEquals(100, s.count);
+        assertEquals(1000, s.max);
+        assertTrue(s.p50 >= 500 && s.p50 <= 625);
+        assertTrue(s.p90 >= 900 && s.p90 <= 1000);
+        assertEquals(1, h.getErrors());
+        // taking a snapshot resets nothing, every reader sees the same window
+        assertEquals(100, h.snapshot(t + 15 * second).count);
+
+        // a slowdown shows in the next window alone
+        for (int i = 0; i < 10; i++) {
+            h.record(50000, false, t + 12 * second);
+        }
+        s = h.snapshot(t + 25 * second);
+        assertEquals(10, s.count);
+        assertTrue(s.p50 >= 50000);
+        assertEquals(50000, s.max);
+        // the windows roll over on time, an idle interval publishes nothing
+        assertEquals(0, h.snapshot(t + 35 * second).count);
+        assertEquals(110, h.getCount());
+    }
+
+    private byte[] writeFile(Path file, int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        FSDataOutputStream out = fs.create(file);
+        out.write(data);
+        out.close();
+        return data;
+    }
+
+    public void testSeekBackAfterDirectRead() throws IOException {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        byte[] data = writeFile(new Path("/file"), 3 * buffer);
+        FSDataInputStream in = fs.open(new Path("/file"));
+        in.readFully(new byte[buffer]);
+        ByteBuffer direct = ByteBuffer.allocateDirect(buffer);
+        assertEquals(buffer, in.read(direct));
+        assertEquals(data[buffer], direct.get(0));
+
+        // the pooled buffer still holds [0, buffer), which must not be served for [buffer, 2 * buffer)
+        in.seek(2 * buffer - 10);
+        byte[] read = new byte[20];
+        in.readFully(read);
+        in.close();
+        assertEquals(data[2 * buffer - 10], read[0]);
+        assertEquals(data[2 * buffer + 9], read[19]);
+    }
+
+    public void testPositionedRead() throws IOException {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        byte[] data = writeFile(new Path("/file"), 2 * buffer + 100);
+        CubefsMount cfs = ((CubefsFileSystem) fs).mount();
+        FSDataInputStream in = fs.open(new Path("/file"));
+        CubefsInputStream stream = (CubefsInputStream) in.getWrappedStream();
+
+        // spans the pooled buffer size and leaves the cursor alone
+        byte[] read = new byte[buffer + 50];
+        in.readFully(buffer - 20, read);
+        assertEquals(data[buffer - 20], read[0]);
+        assertEquals(data[2 * buffer + 29], read[read.length - 1]);
+        assertEquals(0, in.getPos());
+        assertEquals(-1, in.read(data.length, new byte[1], 0, 1));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        stream.readFully(1000, direct);
+        assertEquals(data[1000], direct.get(0));
+        assertEquals(data[1063], direct.get(63));
+        ByteBuffer heap = ByteBuffer.allocate(64);
+        stream.readFully(2000, heap);
+        assertEquals(data[2000], heap.get(0));
+        try {
+            stream.read(0, ByteBuffer.allocate(8).asReadOnlyBuffer());
+            fail("read into a read-only buffer");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+
+        in.close();
+        assertEquals(0, cfs.getOpenFiles());
+        try {
+            in.read(0, new byte[1], 0, 1);
+            fail("read from a closed stream");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCloseKeepsWriteError() throws IOException {
+        FSDataOutputStream out = fs.create(new Path("/file"));
+        out.write(new byte[10]);
+        InMemoryCubefsLib.setWriteError(CubefsMount.ENOSPACE);
+        try {
+            out.close();
+            fail("closed after a failed write");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("write failed"));
+        }
+        assertEquals(0, InMemoryCubefsLib.openFiles());
+    }
+
+    public void testAbandonedListingClosedWithFileSystem() throws IOException {
+        Path dir = new Path("/abandoned");
+        for (int i = 0; i < 20; i++) {
+            fs.create(new Path(dir, "file_" + i)).close();
+        }
+        Configuration cfg = newConf();
+        cfg.setInt(CubefsConfigs.CFS_READDIR_BATCH_SIZE, 5);
+        FileSystem lister = FileSystem.get(URI.create("cfs://test/"), cfg);
+        int open = InMemoryCubefsLib.openFiles();
+        RemoteIterator<FileStatus> it = lister.listStatusIterator(dir);
+        it.next();
+        assertEquals(open + 1, InMemoryCubefsLib.openFiles());
+        lister.close();
+        assertEquals(open, InMemoryCubefsLib.openFiles());
+    }
+
+    public void testAbandonedListingReclaimed() throws IOException, InterruptedException {
+        Path dir = new Path("/abandoned");
+        for (int i = 0; i < 20; i++) {
+            fs.create(new Path(dir, "file_" + i)).close();
+        }
+        Configuration cfg = newConf();
+        cfg.setInt(CubefsConfigs.CFS_READDIR_BATCH_SIZE, 5);
+        FileSystem lister = FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            int open = InMemoryCubefsLib.openFiles();
+            RemoteIterator<LocatedFileStatus> located = lister.listLocatedStatus(dir);
+            located.next();
+            assertEquals(open + 1, InMemoryCubefsLib.openFiles());
+            ((Closeable) located).close();
+            assertEquals(open, InMemoryCubefsLib.openFiles());
+
+            startAndDrop(lister, dir);
+            assertEquals(open + 2, InMemoryCubefsLib.openFiles());
+            // each new listing closes the listings collected so far
+            for (int i = 0; i < 50 && InMemoryCubefsLib.openFiles() > open; i++) {
+                System.gc();
+                Thread.sleep(20);
+                ((Closeable) lister.listStatusIterator(dir)).close();
+            }
+            assertEquals(open, InMemoryCubefsLib.openFiles());
+        } finally {
+            lister.close();
+        }
+    }
+
+    private static void startAndDrop(FileSystem lister, Path dir) throws IOException {
+        lister.listStatusIterator(dir).next();
+        lister.listLocatedStatus(dir).next();
+    }
+
+    public void testSlowListingDoesNotStallWalks() throws IOException {
+        int perDir = CubefsTreeWalker.QUEUE_CAPACITY / 2 + 10;
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < perDir; j++) {
+                fs.create(new Path("/slow/d" + i + "/f" + j)).close();
+            }
+        }
+        Configuration cfg = newConf();
+        cfg.setInt(CubefsConfigs.CFS_TREE_WALK_THREADS, 2);
+        FileSystem walker = FileSystem.get(URI.create("cfs://test/"), cfg);
+        try {
+            // fills the queue of the listing, its walk threads wait for the caller
+            RemoteIterator<LocatedFileStatus> it = walker.listFiles(new Path("/slow"), true);
+            assertTrue(it.hasNext());
+            assertEquals(2 * perDir, walker.getContentSummary(new Path("/slow")).getFileCount());
+            ((java.io.Closeable) it).close();
+        } finally {
+            walker.close();
+        }
+    }
+
+    public void testDeleteKeepsFilesCreatedMeanwhile() throws IOException {
+        for (int j = 0; j < 4; j++) {
+            fs.create(new Path("/racy/d/f" + j)).close();
+        }
+        final Path late = new Path("/racy/d/late");
+        InMemoryCubefsLib.setUnlinkHook(new Runnable() {
+            @Override
+            public void run() {
+                InMemoryCubefsLib.setUnlinkHook(null);
+                try {
+                    fs.create(late).close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            fs.delete(new Path("/racy"), true);
+            fail("Deleted a directory with a file created during the delete");
+        } catch (PathIsNotEmptyDirectoryException e) {
+            // expected
+        }
+        assertTrue(fs.exists(late));
+    }
+
+    public void testSharedClientsKey() throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("volName", "test");
+        options.put("secretKey", "topsecret");
+        String key = CubefsClientRegistry.key(newConf(), options, 1, CubefsClientPool.POLICY_ROUND_ROBIN);
+        assertFalse(key.contains("topsecret"));
+        assertEquals(key, CubefsClientRegistry.key(newConf(), options, 1, CubefsClientPool.POLICY_ROUND_ROBIN));
+        options.put("secretKey", "other");
+        assertFalse(key.equals(CubefsClientRegistry.key(newConf(), options, 1, CubefsClientPool.POLICY_ROUND_ROBIN)));
+
+        // a pool that failed to start is not handed out again
+        Configuration conf = newConf();
+        conf.setBoolean(CubefsConfigs.CFS_CLIENT_SHARE_ENABLE, true);
+        InMemoryCubefsLib.setStartError(CubefsMount.EINVAL);
+        try {
+            FileSystem.get(URI.create("cfs://test/"), conf);
+            fail("started a client");
+        } catch (IOException e) {
+            // expected
+        }
+        InMemoryCubefsLib.setStartError(0);
+        FileSystem shared = FileSystem.get(URI.create("cfs://test/"), conf);
+        try {
+            assertTrue(shared.mkdirs(new Path("/started")));
+        } finally {
+            shared.close();
+        }
+    }
+
+    public void testByteBufferRead() throws IOException {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        byte[] data = writeFile(new Path("/file"), 3 * buffer + 100);
+        FSDataInputStream in = fs.open(new Path("/file"));
+        assertEquals(0, in.read(ByteBuffer.allocate(0)));
+
+        // heap and small direct buffers are served from the pooled buffer
+        ByteBuffer heap = ByteBuffer.allocate(100);
+        assertEquals(100, in.read(heap));
+        ByteBuffer small = ByteBuffer.allocateDirect(100);
+        assertEquals(100, in.read(small));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(data[i], heap.get(i));
+            assertEquals(data[100 + i], small.get(i));
+        }
+
+        // large direct buffers are filled in place, up to the end of the file
+        ByteBuffer large = ByteBuffer.allocateDirect(2 * buffer);
+        ((java.nio.Buffer) large).position(10);
+        int n;
+        long pos = in.getPos();
+        while (pos < data.length && (n = in.read(large)) > 0) {
+            for (int i = 0; i < n; i++) {
+                assertEquals(data[(int) pos + i], large.get(large.position() - n + i));
+            }
+            pos += n;
+            if (!large.hasRemaining()) {
+                ((java.nio.Buffer) large).clear();
+            }
+        }
+        assertEquals(data.length, in.getPos());
+        assertEquals(-1, in.read(ByteBuffer.allocateDirect(2 * buffer)));
+        assertEquals(-1, in.read(ByteBuffer.allocate(10)));
+        in.close();
+    }
+
+    public void testConcurrentPositionedReads() throws Exception {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        final byte[] data = writeFile(new Path("/file"), 4 * buffer);
+        final FSDataInputStream in = fs.open(new Path("/file"));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        byte[] read = new byte[1000];
+                        for (int i = 0; i < 200; i++) {
+                            int pos = random.nextInt(data.length - read.length);
+                            in.readFully(pos, read);
+                            for (int j = 0; j < read.length; j++) {
+                                if (read[j] != data[pos + j]) {
+                                    throw new AssertionError("byte " + (pos + j) + " differs");
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        // positioned reads leave the cursor alone
+        assertEquals(0, in.getPos());
+        in.close();
+    }
+
+    private CubefsFileSystem metered(String fadvise) throws IOException {
+        Configuration conf = newConf();
+        conf.setBoolean(CubefsConfigs.CFS_METRICS_ENABLE, true);
+        conf.set(CubefsConfigs.CFS_INPUT_FADVISE, fadvise);
+        return (CubefsFileSystem) FileSystem.get(URI.create("cfs://test/"), conf);
+    }
+
+    public void testInputPolicy() throws IOException {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        int randomSize = CubefsConfigs.CFS_INPUT_RANDOM_READ_SIZE_DEFAULT;
+        byte[] data = writeFile(new Path("/file"), 8 * buffer);
+
+        CubefsFileSystem normal = metered("normal");
+        try {
+            CubefsMetrics metrics = normal.mount().getMetrics();
+            FSDataInputStream in = normal.open(new Path("/file"));
+            assertEquals(data[0], (byte) in.read());
+            long reads = metrics.getCount(CubefsMetrics.READ);
+            // seeks inside the buffer, forward or back, keep it
+            in.seek(1000);
+            assertEquals(data[1000], (byte) in.read());
+            in.seek(10);
+            assertEquals(data[10], (byte) in.read());
+            assertEquals(reads, metrics.getCount(CubefsMetrics.READ));
+
+            // the second seek out of the buffer in a row turns the stream random
+            long bytes = metrics.getBytesRead();
+            in.seek(3 * buffer);
+            assertEquals(data[3 * buffer], (byte) in.read());
+            assertEquals(bytes + buffer, metrics.getBytesRead());
+            in.seek(5 * buffer);
+            assertEquals(data[5 * buffer], (byte) in.read());
+            assertEquals(bytes + buffer + randomSize, metrics.getBytesRead());
+            in.close();
+        } finally {
+            normal.close();
+        }
+
+        CubefsFileSystem random = metered("random");
+        try {
+            CubefsMetrics metrics = random.mount().getMetrics();
+            FSDataInputStream in = random.open(new Path("/file"));
+            byte[] read = new byte[10];
+            in.readFully(2 * buffer, read);
+            in.seek(4 * buffer);
+            in.readFully(read);
+            assertEquals(data[4 * buffer + 9], read[9]);
+            // a positioned read reads what it is asked for, the cursor only the random read size
+            assertEquals(10 + randomSize, metrics.getBytesRead());
+            in.close();
+        } finally {
+            random.close();
+        }
+    }
+
+    public void testVectoredRead() throws Exception {
+        int buffer = CubefsConfigs.CFS_MIN_READ_BUFFER_SIZE_DEFAULT;
+        byte[] data = writeFile(new Path("/file"), 4 * buffer);
+        List<CubefsFileRange> ranges = Arrays.asList(
+                new CubefsFileRange(3 * buffer + 10000, 100),
+                new CubefsFileRange(100, 50),
+                // close enough to the previous one to be read with it
+                new CubefsFileRange(200, 30),
+                new CubefsFileRange(2 * buffer, buffer));
+        assertEquals(3, CubefsFileRange.merge(ranges, CubefsConfigs.CFS_VECTORED_READ_MIN_SEEK_SIZE_DEFAULT,
+                CubefsConfigs.CFS_VECTORED_READ_MAX_MERGED_SIZE_DEFAULT).size());
+        IntFunction<ByteBuffer> allocate = new IntFunction<ByteBuffer>() {
+            @Override
+            public ByteBuffer apply(int length) {
+                return ByteBuffer.allocateDirect(length);
+            }
+        };
+
+        CubefsFileSystem metered = metered("normal");
+        try {
+            CubefsMetrics metrics = metered.mount().getMetrics();
+            metered.readVectored(new Path("/file"), ranges, allocate);
+            for (CubefsFileRange range : ranges) {
+                ByteBuffer read = range.getData().get();
+                assertEquals(range.getLength(), read.remaining());
+                for (int i = 0; i < range.getLength(); i++) {
+                    assertEquals(data[(int) range.getOffset() + i], read.get(read.position() + i));
+                }
+            }
+            assertEquals(3, metrics.getCount(CubefsMetrics.READ));
+
+            CubefsFileRange pastEnd = new CubefsFileRange(4 * buffer - 10, 20);
+            metered.readVectored(new Path("/file"), Arrays.asList(pastEnd), allocate);
+            try {
+                pastEnd.getData().get();
+                fail("read past the end of the file");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof EOFException);
+            }
+
+            try {
+                metered.readVectored(new Path("/file"), Arrays.asList(new CubefsFileRange(0, 100),
+                        new CubefsFileRange(50, 100)), allocate);
+                fail("read overlapping ranges");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            metered.close();
+        }
+    }
+
+    private FileSystem smallBuffers(String... flags) throws IOException {
+        Configuration conf = newConf();
+        conf.setInt(CubefsConfigs.CFS_MIN_BUFFER_SIZE, 4096);
+        for (String flag : flags) {
+            conf.setBoolean(flag, true);
+        }
+        return FileSystem.get(URI.create("cfs://test/"), conf);
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7 + i / 4093);
+        }
+        return data;
+    }
+
+    private void assertContent(FileSystem reader, Path file, byte[] data) throws IOException {
+        assertEquals(data.length, reader.getFileStatus(file).getLen());
+        byte[] read = new byte[data.length];
+        FSDataInputStream in = reader.open(file);
+        in.readFully(read);
+        in.close();
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    public void testWriteBehind() throws IOException {
+        FileSystem writer = smallBuffers(CubefsConfigs.CFS_WRITE_ASYNC_ENABLE);
+        try {
+            byte[] data = pattern(100 * 1000 + 17);
+            Path file = new Path("/behind");
+            FSDataOutputStream out = writer.create(file);
+            out.write(data, 0, 50 * 1000);
+            // everything written so far is in the file once hflush returns
+            out.hflush();
+            assertEquals(50 * 1000, fs.getFileStatus(file).getLen());
+            for (int off = 50 * 1000; off < data.length; off += 1000) {
+                out.write(data, off, Math.min(1000, data.length - off));
+            }
+            out.close();
+            assertContent(fs, file, data);
+
+            // a failed background write is reported by a later call
+            out = writer.create(new Path("/failing"));
+            InMemoryCubefsLib.setWriteError(CubefsMount.ENOSPACE);
+            boolean failed = false;
+            try {
+                for (int i = 0; i < 100; i++) {
+                    out.write(data, 0, 1000);
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+            }
+            assertTrue(failed);
+            InMemoryCubefsLib.setWriteError(0);
+            assertEquals(0, InMemoryCubefsLib.openFiles());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testOutputBuffersPooled() throws IOException {
+        CubefsMount cfs = ((CubefsFileSystem) fs).mount();
+        CubefsBufferPool pool = new CubefsBufferPool();
+        ExecutorService io = Executors.newFixedThreadPool(2);
+        try {
+            byte[] data = pattern(20 * 4096 + 5);
+            for (int async : new int[]{0, 2}) {
+                String file = "/pooled" + async;
+                int fd = cfs.open(file, CubefsMount.O_WRONLY | CubefsMount.O_CREAT, 0644);
+                CubefsOutputStream out = new CubefsOutputStream(cfs, new FileSystem.Statistics("cfs"), pool, fd, 0L,
+                        4096, io, new CubefsWriteOptions(async, 0, 0));
+                out.write(data);
+                // the buffer being filled plus the ones written behind it
+                assertTrue(pool.getBuffersInUse() <= 1 + async);
+                out.close();
+                assertEquals(0, pool.getBuffersInUse());
+                assertContent(fs, new Path(file), data);
+            }
+        } finally {
+            io.shutdown();
+        }
+    }
+
+    public void testParallelWrite() throws IOException {
+        Configuration conf = newConf();
+        conf.setInt(CubefsConfigs.CFS_MIN_BUFFER_SIZE, 4096);
+        conf.setBoolean(CubefsConfigs.CFS_WRITE_PARALLEL_ENABLE, true);
+        conf.setLong(CubefsConfigs.CFS_WRITE_PARALLEL_THRESHOLD, 4 * 4096);
+        conf.setInt(CubefsConfigs.CFS_WRITE_PARALLEL_PARTS, 4);
+        FileSystem writer = FileSystem.get(URI.create("cfs://test/"), conf);
+        InMemoryCubefsLib.setLatencyMicros(200);
+        try {
+            byte[] data = pattern(50 * 4096 + 123);
+            Path file = new Path("/parallel");
+            FSDataOutputStream out = writer.create(file);
+            // buffers below the threshold in turn, then several at once at their own offsets
+            out.write(data, 0, 30 * 4096);
+            out.hsync();
+            assertEquals(30 * 4096, fs.getFileStatus(file).getLen());
+            out.write(data, 30 * 4096, data.length - 30 * 4096);
+            out.close();
+            assertContent(fs, file, data);
+        } finally {
+            InMemoryCubefsLib.setLatencyMicros(0);
+            writer.close();
+        }
+    }
+
+    public void testDirectBinding() throws IOException {
+        // a configured implementation takes precedence over the binding
+        Configuration conf = newConf();
+        conf.set(CubefsConfigs.CFS_NATIVE_BINDING, CubefsMount.BINDING_DIRECT);
+        assertTrue(CubefsMount.loadLibrary(conf) instanceof InMemoryCubefsLib);
+
+        CubefsLib direct;
+        try {
+            direct = new CubefsDirectLib(new InMemoryCubefsLib());
+        } catch (LinkageError e) {
+            // no libcfs to bind in this JVM, the error loadLibrary falls back to the proxy on
+            return;
+        }
+        // calls that are not bound directly go to the proxy
+        long id = direct.cfs_new_client();
+        assertEquals(0, direct.cfs_set_client(id, "volName", "direct"));
+        assertEquals(0, direct.cfs_start_client(id));
+        direct.cfs_close_client(id);
+    }
+
+    private static CubefsInputStream readAhead(CubefsMount cfs, String file, CubefsBufferPool pool, ExecutorService io,
+                                               int depth) throws IOException {
+        int fd = cfs.open(file, CubefsMount.O_RDONLY, 0);
+        return new CubefsInputStream(cfs, new FileSystem.Statistics("cfs"), pool, new Path(file), fd, 4096, io,
+                new CubefsReadOptions(depth, 4096, CubefsInputPolicy.SEQUENTIAL, 4096, 0, 0));
+    }
+
+    private static void readAll(CubefsInputStream in, byte[] data) throws IOException {
+        byte[] read = new byte[data.length];
+        int n = 0;
+        while (n < read.length) {
+            int r = in.read(read, n, Math.min(1000, read.length - n));
+            assertTrue(r > 0);
+            n += r;
+        }
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    public void testReadAheadSequential() throws Exception {
+        byte[] data = writeFile(new Path("/ahead"), 10 * 4096 + 100);
+        CubefsFileSystem metered = metered("sequential");
+        CubefsBufferPool pool = new CubefsBufferPool();
+        ExecutorService io = Executors.newFixedThreadPool(4);
+        try {
+            CubefsMetrics metrics = metered.mount().getMetrics();
+            CubefsInputStream in = readAhead(metered.mount(), "/ahead", pool, io, 4);
+            assertEquals(data[0], (byte) in.read());
+            // the buffer being read plus the reads in flight behind it
+            assertEquals(1 + 4, pool.getBuffersInUse());
+            readAll(in, Arrays.copyOfRange(data, 1, data.length));
+            // every chunk came from a read-ahead buffer
+            assertTrue(pool.getGets() >= 1 + 11);
+
+            // at the end of the file, reads ahead stop: one synchronous read per call at most
+            assertEquals(-1, in.read());
+            long reads = metrics.getCount(CubefsMetrics.READ);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(-1, in.read());
+            }
+            in.close();
+            assertEquals(0, pool.getBuffersInUse());
+            io.shutdown();
+            assertTrue(io.awaitTermination(10, TimeUnit.SECONDS));
+            // the reads cancelled at the end of the file may still have been running
+            assertTrue(metrics.getCount(CubefsMetrics.READ) - reads <= 5 + 4);
+        } finally {
+            io.shutdownNow();
+            metered.close();
+        }
+    }
+
+    public void testReadAheadSeekCancels() throws Exception {
+        byte[] data = writeFile(new Path("/ahead"), 20 * 4096);
+        CubefsFileSystem metered = metered("sequential");
+        CubefsBufferPool pool = new CubefsBufferPool();
+        // one thread, so the reads behind the running one stay queued
+        ExecutorService io = Executors.newSingleThreadExecutor();
+        InMemoryCubefsLib.setLatencyMicros(2000);
+        try {
+            CubefsMetrics metrics = metered.mount().getMetrics();
+            long reads = metrics.getCount(CubefsMetrics.READ);
+            CubefsInputStream in = readAhead(metered.mount(), "/ahead", pool, io, 4);
+            assertEquals(data[0], (byte) in.read());
+            in.seek(12 * 4096);
+            assertEquals(data[12 * 4096], (byte) in.read());
+            // the queued reads were dropped with their buffers, the running one returned its own
+            assertEquals(1 + 4, pool.getBuffersInUse());
+            // the first read, the one running at the seek, the read at the new offset and at most
+            // the one behind it
+            assertTrue(metrics.getCount(CubefsMetrics.READ) - reads <= 4);
+            readAll(in, Arrays.copyOfRange(data, 12 * 4096 + 1, data.length));
+            in.close();
+            assertEquals(0, pool.getBuffersInUse());
+        } finally {
+            InMemoryCubefsLib.setLatencyMicros(0);
+            io.shutdownNow();
+            metered.close();
+        }
+    }
+
+    public void testReadAheadClose() throws Exception {
+        writeFile(new Path("/ahead"), 20 * 4096);
+        CubefsFileSystem metered = metered("sequential");
+        CubefsBufferPool pool = new CubefsBufferPool();
+        ExecutorService io = Executors.newSingleThreadExecutor();
+        InMemoryCubefsLib.setLatencyMicros(2000);
+        try {
+            CubefsMetrics metrics = metered.mount().getMetrics();
+            int open = InMemoryCubefsLib.openFiles();
+            CubefsInputStream in = readAhead(metered.mount(), "/ahead", pool, io, 4);
+            in.read();
+            // waits for the running read, drops the queued ones
+            in.close();
+            assertEquals(0, pool.getBuffersInUse());
+            assertEquals(open, InMemoryCubefsLib.openFiles());
+            long reads = metrics.getCount(CubefsMetrics.READ);
+            io.shutdown();
+            assertTrue(io.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(reads, metrics.getCount(CubefsMetrics.READ));
+        } finally {
+            InMemoryCubefsLib.setLatencyMicros(0);
+            io.shutdownNow();
+            metered.close();
+        }
+    }
+
+    public void testReadAheadRejected() throws Exception {
+        byte[] data = writeFile(new Path("/ahead"), 10 * 4096 + 100);
+        CubefsMount cfs = ((CubefsFileSystem) fs).mount();
+        ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+        // a single thread and no queue: the first read is taken, the others are rejected while it runs
+        ExecutorService saturated = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>());
+        InMemoryCubefsLib.setLatencyMicros(500);
+        try {
+            for (ExecutorService io : new ExecutorService[]{shutDown, saturated}) {
+                CubefsBufferPool pool = new CubefsBufferPool();
+                CubefsInputStream in = readAhead(cfs, "/ahead", pool, io, 4);
+                // rejected reads are done synchronously
+                readAll(in, data);
+                assertEquals(-1, in.read());
+                in.close();
+                assertEquals(0, pool.getBuffersInUse());
+            }
+        } finally {
+            InMemoryCubefsLib.setLatencyMicros(0);
+            saturated.shutdownNow();
+        }
+    }
+}
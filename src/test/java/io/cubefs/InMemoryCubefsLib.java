@@ -0,0 +1,676 @@
+// Copyright 2022 The CubeFS Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied. See the License for the specific language governing
+// permissions and limitations under the License.
+
+package io.cubefs;
+
+import com.sun.jna.Pointer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process {@link CubefsLib} that keeps volumes in memory, for tests and benchmarks that run
+ * without a cluster. Select it with {@code cfs.native.lib.impl=io.cubefs.InMemoryCubefsLib}.
+ * Volumes are shared by every instance in the JVM, keyed by the {@code volName} client option.
+ * Each call sleeps for {@link #setLatencyMicros(long)} to mimic a round trip, which defaults to
+ * the {@code io.cubefs.fake.latency.us} system property.
+ */
+public class InMemoryCubefsLib implements CubefsLib {
+    private static final Map<String, Volume> volumes = new ConcurrentHashMap<>();
+    private static final AtomicLong nextClientId = new AtomicLong(1);
+    private static final AtomicInteger openFiles = new AtomicInteger();
+    private static volatile long latencyNanos = Long.getLong("io.cubefs.fake.latency.us", 0L) * 1000L;
+    private static volatile boolean extentLocations = true;
+    private static volatile int writeError;
+    private static volatile int mkdirsError;
+    private static volatile Runnable unlinkHook;
+    private static volatile int startError;
+
+    /**
+     * Files are laid out in extents of this size, spread over {@link #DATA_NODES} data nodes.
+     */
+    public static final long EXTENT_SIZE = 1 << 20;
+    public static final int DATA_NODES = 4;
+
+    private final Map<Long, Client> clients = new ConcurrentHashMap<>();
+
+    public static void setLatencyMicros(long micros) {
+        latencyNanos = micros * 1000L;
+    }
+
+    /**
+     * Makes cfs_get_extent_locations behave as if missing from libcfs, like older libraries.
+     */
+    public static void setExtentLocationsSupported(boolean supported) {
+        extentLocations = supported;
+    }
+
+    /**
+     * Makes every cfs_write fail with {@code errno}, 0 to let them succeed again.
+     */
+    public static void setWriteError(int errno) {
+        writeError = errno;
+    }
+
+    /**
+     * Makes every cfs_mkdirs fail with {@code errno}, 0 to let them succeed again.
+     */
+    public static void setMkdirsError(int errno) {
+        mkdirsError = errno;
+    }
+
+    /**
+     * Makes every cfs_start_client fail with {@code errno}, 0 to let them succeed again.
+     */
+    public static void setStartError(int errno) {
+        startError = errno;
+    }
+
+    /**
+     * Runs {@code hook} after every successful cfs_unlink, null to stop.
+     */
+    public static void setUnlinkHook(Runnable hook) {
+        unlinkHook = hook;
+    }
+
+    /**
+     * Host of data node {@code i}, which holds the extents of partition {@code i} and {@code i - 1}.
+     */
+    public static String dataNode(int i) {
+        return "datanode-" + i;
+    }
+
+    /**
+     * Drops every volume, for test isolation.
+     */
+    public static void reset() {
+        volumes.clear();
+        extentLocations = true;
+        writeError = 0;
+        mkdirsError = 0;
+        unlinkHook = null;
+        startError = 0;
+    }
+
+    /**
+     * Number of fds opened and not yet closed, over all clients.
+     */
+    public static int openFiles() {
+        return openFiles.get();
+    }
+
+    private static final class Node {
+        final long ino;
+        final boolean dir;
+        int mode;
+        long mtime;
+        byte[] data = new byte[0];
+        long size;
+        Node parent;
+        String name;
+        final TreeMap<String, Node> children;
+
+        Node(long ino, boolean dir, int mode) {
+            this.ino = ino;
+            this.dir = dir;
+            this.mode = mode;
+            this.mtime = System.currentTimeMillis();
+            this.children = dir ? new TreeMap<String, Node>() : null;
+        }
+    }
+
+    private static final class Volume {
+        final AtomicLong nextIno = new AtomicLong(1);
+        final Node root = new Node(nextIno.getAndIncrement(), true, CubefsMount.S_IFDIR | 0755);
+        final Map<Long, Node> inodes = new HashMap<>();
+
+        Volume() {
+            root.name = "";
+            inodes.put(root.ino, root);
+        }
+    }
+
+    private static final class Handle {
+        final Node node;
+        // last name returned by readdir
+        String marker;
+
+        Handle(Node node) {
+            this.node = node;
+        }
+    }
+
+    private static final class Client {
+        final Map<String, String> options = new ConcurrentHashMap<>();
+        final Map<Integer, Handle> fds = new ConcurrentHashMap<>();
+        final AtomicInteger nextFd = new AtomicInteger(3);
+        Volume volume;
+        String cwd = "/";
+    }
+
+    private static void delay() {
+        long nanos = latencyNanos;
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private Client client(long id) {
+        Client c = clients.get(id);
+        if (c == null) {
+            throw new IllegalStateException("unknown client " + id);
+        }
+        return c;
+    }
+
+    private static String[] split(String path) {
+        String[] parts = path.split("/");
+        int n = 0;
+        for (String p : parts) {
+            if (!p.isEmpty()) {
+                parts[n++] = p;
+            }
+        }
+        return Arrays.copyOf(parts, n);
+    }
+
+    /**
+     * Resolves a path, returns null if any component is missing or not a directory.
+     */
+    private static Node lookup(Volume v, String path) {
+        Node n = v.root;
+        for (String p : split(path)) {
+            if (!n.dir) {
+                return null;
+            }
+            n = n.children.get(p);
+            if (n == null) {
+                return null;
+            }
+        }
+        return n;
+    }
+
+    private static Node parentOf(Volume v, String path) {
+        String[] parts = split(path);
+        if (parts.length == 0) {
+            return null;
+        }
+        return lookup(v, "/" + String.join("/", Arrays.copyOf(parts, parts.length - 1)));
+    }
+
+    private static String nameOf(String path) {
+        String[] parts = split(path);
+        return parts.length == 0 ? "" : parts[parts.length - 1];
+    }
+
+    private static Node attach(Volume v, Node parent, String name, boolean dir, int mode) {
+        Node n = new Node(v.nextIno.getAndIncrement(), dir, (dir ? CubefsMount.S_IFDIR : CubefsMount.S_IFREG) | (mode & 0777));
+        n.parent = parent;
+        n.name = name;
+        parent.children.put(name, n);
+        parent.mtime = System.currentTimeMillis();
+        v.inodes.put(n.ino, n);
+        return n;
+    }
+
+    private static void forget(Volume v, Node n) {
+        v.inodes.remove(n.ino);
+        if (n.dir) {
+            for (Node c : n.children.values()) {
+                forget(v, c);
+            }
+        }
+    }
+
+    private static void fill(Node n, StatInfo stat) {
+        long sec = n.mtime / 1000;
+        int nsec = (int) (n.mtime % 1000) * 1000000;
+        stat.ino = n.ino;
+        stat.size = n.dir ? 0 : n.size;
+        stat.blocks = (stat.size + 511) / 512;
+        stat.atime = sec;
+        stat.mtime = sec;
+        stat.ctime = sec;
+        stat.atime_nsec = nsec;
+        stat.mtime_nsec = nsec;
+        stat.ctime_nsec = nsec;
+        stat.mode = n.mode;
+        stat.nlink = n.dir ? 2 : 1;
+        stat.blkSize = 4096;
+        stat.uid = 0;
+        stat.gid = 0;
+    }
+
+    @Override
+    public long cfs_new_client() {
+        long id = nextClientId.getAndIncrement();
+        clients.put(id, new Client());
+        return id;
+    }
+
+    @Override
+    public int cfs_set_client(long id, String key, String val) {
+        client(id).options.put(key, val == null ? "" : val);
+        return 0;
+    }
+
+    @Override
+    public int cfs_start_client(long id) {
+        delay();
+        Client c = client(id);
+        String vol = c.options.get("volName");
+        if (vol == null || vol.isEmpty()) {
+            return CubefsMount.EINVAL;
+        }
+        if (startError != 0) {
+            return startError;
+        }
+        Volume v = volumes.get(vol);
+        if (v == null) {
+            volumes.putIfAbsent(vol, new Volume());
+            v = volumes.get(vol);
+        }
+        c.volume = v;
+        return 0;
+    }
+
+    @Override
+    public void cfs_close_client(long id) {
+        clients.remove(id);
+    }
+
+    @Override
+    public int cfs_chdir(long id, String path) {
+        client(id).cwd = path;
+        return 0;
+    }
+
+    @Override
+    public String cfs_getcwd(long id) {
+        return client(id).cwd;
+    }
+
+    @Override
+    public int cfs_getattr(long id, String path, StatInfo stat) {
+        delay();
+        Volume v = client(id).volume;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            if (n == null) {
+                return CubefsMount.ENOENT;
+            }
+            fill(n, stat);
+            return 0;
+        }
+    }
+
+    @Override
+    public int cfs_setattr(long id, String path, StatInfo stat, int mask) {
+        delay();
+        Volume v = client(id).volume;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            if (n == null) {
+                return CubefsMount.ENOENT;
+            }
+            if ((mask & CubefsMount.SETATTR_MODE) != 0) {
+                n.mode = (n.mode & ~0777) | (stat.mode & 0777);
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public int cfs_open(long id, String path, int flags, int mode, int uid, int gid) {
+        delay();
+        Client c = client(id);
+        Volume v = c.volume;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            boolean create = (flags & CubefsMount.O_CREAT) != 0;
+            boolean trunc = (flags & CubefsMount.O_TRUNC) != 0;
+            boolean write = (flags & CubefsMount.O_ACCMODE) != CubefsMount.O_RDONLY;
+            if (n == null) {
+                if (!create) {
+                    return CubefsMount.ENOENT;
+                }
+                Node parent = parentOf(v, path);
+                if (parent == null) {
+                    return CubefsMount.ENOENT;
+                }
+                if (!parent.dir) {
+                    return CubefsMount.ENOTDIR;
+                }
+                n = attach(v, parent, nameOf(path), false, mode);
+            } else if (create && !trunc) {
+                return CubefsMount.EEXIST;
+            } else if (n.dir && (write || trunc)) {
+                return CubefsMount.EISDIR;
+            } else if (trunc) {
+                synchronized (n) {
+                    n.data = new byte[0];
+                    n.size = 0;
+                    n.mtime = System.currentTimeMillis();
+                }
+            }
+            int fd = c.nextFd.getAndIncrement();
+            c.fds.put(fd, new Handle(n));
+            openFiles.incrementAndGet();
+            return fd;
+        }
+    }
+
+    @Override
+    public int cfs_flush(long id, int fd) {
+        delay();
+        return client(id).fds.containsKey(fd) ? 0 : CubefsMount.EINVAL;
+    }
+
+    @Override
+    public void cfs_close(long id, int fd) {
+        delay();
+        if (client(id).fds.remove(fd) != null) {
+            openFiles.decrementAndGet();
+        }
+    }
+
+    private long write(long id, int fd, byte[] src, int srcOff, long size, long offset, Pointer ptr) {
+        delay();
+        Handle h = client(id).fds.get(fd);
+        if (h == null) {
+            return CubefsMount.EINVAL;
+        }
+        if (writeError != 0) {
+            return writeError;
+        }
+        Node n = h.node;
+        synchronized (n) {
+            long end = offset + size;
+            if (end > n.data.length) {
+                n.data = Arrays.copyOf(n.data, (int) Math.max(end, Math.min((long) n.data.length * 2, Integer.MAX_VALUE - 8)));
+            }
+            if (ptr != null) {
+                ptr.read(0, n.data, (int) offset, (int) size);
+            } else {
+                System.arraycopy(src, srcOff, n.data, (int) offset, (int) size);
+            }
+            n.size = Math.max(n.size, end);
+            n.mtime = System.currentTimeMillis();
+        }
+        return size;
+    }
+
+    @Override
+    public long cfs_write(long id, int fd, Pointer buf, long size, long offset) {
+        return write(id, fd, null, 0, size, offset, buf);
+    }
+
+    @Override
+    public long cfs_write(long id, int fd, byte[] buf, long size, long offset) {
+        return write(id, fd, buf, 0, size, offset, null);
+    }
+
+    @Override
+    public long cfs_read(long id, int fd, Pointer buf, long size, long offset) {
+        delay();
+        Handle h = client(id).fds.get(fd);
+        if (h == null) {
+            return CubefsMount.EINVAL;
+        }
+        Node n = h.node;
+        if (n.dir) {
+            return CubefsMount.EISDIR;
+        }
+        synchronized (n) {
+            long len = Math.min(size, n.size - offset);
+            if (len <= 0) {
+                return 0;
+            }
+            buf.write(0, n.data, (int) offset, (int) len);
+            return len;
+        }
+    }
+
+    @Override
+    public int cfs_mkdirs(long cid, String path, int mode) {
+        delay();
+        if (mkdirsError != 0) {
+            return mkdirsError;
+        }
+        Volume v = client(cid).volume;
+        synchronized (v) {
+            Node n = v.root;
+            for (String p : split(path)) {
+                Node child = n.children.get(p);
+                if (child == null) {
+                    child = attach(v, n, p, true, mode);
+                } else if (!child.dir) {
+                    return CubefsMount.ENOTDIR;
+                }
+                n = child;
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public int cfs_unlink(long cid, String path) {
+        delay();
+        Volume v = client(cid).volume;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            if (n == null) {
+                return CubefsMount.ENOENT;
+            }
+            if (n.dir) {
+                return CubefsMount.EISDIR;
+            }
+            n.parent.children.remove(n.name);
+            n.parent.mtime = System.currentTimeMillis();
+            forget(v, n);
+        }
+        Runnable hook = unlinkHook;
+        if (hook != null) {
+            hook.run();
+        }
+        return 0;
+    }
+
+    @Override
+    public int cfs_rename(long cid, String from, String to, boolean overwritten) {
+        delay();
+        Volume v = client(cid).volume;
+        synchronized (v) {
+            Node n = lookup(v, from);
+            if (n == null || n == v.root) {
+                return CubefsMount.ENOENT;
+            }
+            Node parent = parentOf(v, to);
+            if (parent == null) {
+                return CubefsMount.ENOENT;
+            }
+            if (!parent.dir) {
+                return CubefsMount.ENOTDIR;
+            }
+            for (Node p = parent; p != null; p = p.parent) {
+                if (p == n) {
+                    return CubefsMount.EINVAL;
+                }
+            }
+            // overwriting, like rename(2), an existing destination of the same kind is replaced
+            Node existing = lookup(v, to);
+            if (existing == n) {
+                return 0;
+            }
+            if (existing != null && !overwritten) {
+                return CubefsMount.EEXIST;
+            }
+            if (existing != null) {
+                if (n.dir && !existing.dir) {
+                    return CubefsMount.ENOTDIR;
+                }
+                if (!n.dir && existing.dir) {
+                    return CubefsMount.EISDIR;
+                }
+                if (existing.dir && !existing.children.isEmpty()) {
+                    return CubefsMount.ENOTEMPTY;
+                }
+                parent.children.remove(existing.name);
+                forget(v, existing);
+            }
+            n.parent.children.remove(n.name);
+            n.parent = parent;
+            n.name = nameOf(to);
+            parent.children.put(n.name, n);
+            return 0;
+        }
+    }
+
+    @Override
+    public int cfs_readdir(long id, int fd, DirentArray.ByValue dents, long count) {
+        delay();
+        Client c = client(id);
+        Handle h = c.fds.get(fd);
+        if (h == null) {
+            return CubefsMount.EINVAL;
+        }
+        if (!h.node.dir) {
+            return CubefsMount.ENOTDIR;
+        }
+        synchronized (c.volume) {
+            Map<String, Node> rest = h.marker == null ? h.node.children : h.node.children.tailMap(h.marker, false);
+            Iterator<Node> it = rest.values().iterator();
+            int size = new Dirent().size();
+            int i = 0;
+            while (i < count && it.hasNext()) {
+                Node n = it.next();
+                Dirent d = new Dirent(dents.data.share((long) i * size));
+                byte[] name = n.name.getBytes(StandardCharsets.UTF_8);
+                int len = Math.min(name.length, d.name.length - 1);
+                d.ino = n.ino;
+                Arrays.fill(d.name, (byte) 0);
+                System.arraycopy(name, 0, d.name, 0, len);
+                d.dType = (byte) (n.dir ? CubefsMount.DT_DIR : CubefsMount.DT_REG);
+                d.nameLen = len;
+                d.write();
+                h.marker = n.name;
+                i++;
+            }
+            return i;
+        }
+    }
+
+    @Override
+    public int cfs_fchmod(long id, int fd, int mode) {
+        delay();
+        Handle h = client(id).fds.get(fd);
+        if (h == null) {
+            return CubefsMount.EINVAL;
+        }
+        h.node.mode = (h.node.mode & ~0777) | (mode & 0777);
+        return 0;
+    }
+
+    @Override
+    public int cfs_rmdir(long cid, String path, boolean recursive) {
+        delay();
+        Volume v = client(cid).volume;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            if (n == null) {
+                return CubefsMount.ENOENT;
+            }
+            if (!n.dir) {
+                return CubefsMount.ENOTDIR;
+            }
+            if (n == v.root) {
+                return CubefsMount.EINVAL;
+            }
+            if (!recursive && !n.children.isEmpty()) {
+                return CubefsMount.ENOTEMPTY;
+            }
+            n.parent.children.remove(n.name);
+            n.parent.mtime = System.currentTimeMillis();
+            forget(v, n);
+            return 0;
+        }
+    }
+
+    @Override
+    public int cfs_batch_get_inodes(long cid, int fd, long[] iids, DirentArray.ByValue stats, int count) {
+        delay();
+        Volume v = client(cid).volume;
+        synchronized (v) {
+            int size = new StatInfo().size();
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                Node node = v.inodes.get(iids[i]);
+                if (node == null) {
+                    continue;
+                }
+                StatInfo stat = new StatInfo(stats.data.share((long) n * size));
+                fill(node, stat);
+                stat.write();
+                n++;
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public int cfs_get_extent_locations(long cid, String path, long offset, long len, DirentArray.ByValue locs, int count) {
+        if (!extentLocations) {
+            throw new UnsatisfiedLinkError("Error looking up function 'cfs_get_extent_locations'");
+        }
+        delay();
+        Volume v = client(cid).volume;
+        long size;
+        long ino;
+        synchronized (v) {
+            Node n = lookup(v, path);
+            if (n == null) {
+                return CubefsMount.ENOENT;
+            }
+            if (n.dir) {
+                return CubefsMount.EISDIR;
+            }
+            size = n.size;
+            ino = n.ino;
+        }
+        int structSize = new ExtentLocation().size();
+        long end = Math.min(offset + len, size);
+        int n = 0;
+        for (long extent = offset / EXTENT_SIZE; extent * EXTENT_SIZE < end && n < count; extent++) {
+            ExtentLocation loc = new ExtentLocation(locs.data.share((long) n * structSize));
+            loc.fileOffset = extent * EXTENT_SIZE;
+            loc.size = Math.min(EXTENT_SIZE, size - loc.fileOffset);
+            loc.partitionId = (ino + extent) % DATA_NODES;
+            int p = (int) loc.partitionId;
+            byte[] hosts = (dataNode(p) + ":17310," + dataNode((p + 1) % DATA_NODES) + ":17310").getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(hosts, 0, loc.hosts, 0, hosts.length);
+            loc.write();
+            n++;
+        }
+        return n;
+    }
+}